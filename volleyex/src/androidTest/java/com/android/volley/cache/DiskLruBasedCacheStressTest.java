@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs puts, gets, removes and clears of a small set of keys from several threads at once
+ * against {@link DiskLruBasedCache}, and checks that every entry read back is one that was
+ * put, whole, under its key.
+ */
+public class DiskLruBasedCacheStressTest extends AndroidTestCase {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int OPERATIONS_PER_THREAD = 2000;
+    private static final int KEY_COUNT = 64;
+    private static final int MAX_SIZE = 512 * 1024;
+
+    private File mDirectory;
+    private DiskLruBasedCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "DiskLruBasedCacheStressTest");
+        deleteRecursively(mDirectory);
+        mCache = new DiskLruBasedCache(mDirectory, MAX_SIZE, 1);
+        mCache.initialize();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        deleteRecursively(mDirectory);
+        File parent = mDirectory.getParentFile();
+        File[] siblings = parent.listFiles();
+        if (siblings != null) {
+            for (File sibling : siblings) {
+                if (sibling.getName().startsWith(mDirectory.getName())) {
+                    deleteRecursively(sibling);
+                }
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testConcurrentOperations() throws Exception {
+        runConcurrently(false);
+    }
+
+    public void testConcurrentOperationsWithSharedBodies() throws Exception {
+        // Bodies of 4 KB and more go to blobs, which keys with the same fill share.
+        mCache.setSharedBodyThreshold(4 * 1024);
+        runConcurrently(false);
+    }
+
+    public void testConcurrentOperationsWithClears() throws Exception {
+        runConcurrently(true);
+    }
+
+    private void runConcurrently(final boolean withClears) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final Random random = new Random(t);
+            new Thread("DiskLruBasedCacheStressTest-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD && failure.get() == null; i++) {
+                            runOperation(random, withClears);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        mCache.flush();
+        assertTrue("size " + mCache.size(), mCache.size() <= MAX_SIZE);
+        // Whatever survived is still readable after the cache is reopened.
+        mCache.close();
+        mCache = new DiskLruBasedCache(mDirectory, MAX_SIZE, 1);
+        mCache.initialize();
+        for (int k = 0; k < KEY_COUNT; k++) {
+            checkEntry("key" + k, mCache.get("key" + k));
+        }
+    }
+
+    private void runOperation(Random random, boolean withClears) {
+        String key = "key" + random.nextInt(KEY_COUNT);
+        int op = random.nextInt(100);
+        if (op < 40) {
+            mCache.put(key, newEntry(key, random));
+        } else if (op < 70) {
+            checkEntry(key, mCache.get(key));
+        } else if (op < 85) {
+            Cache.Entry entry = mCache.getMetadata(key);
+            // False if the entry was replaced or removed since its header was read.
+            if (entry != null && entry.loadData()) {
+                checkEntry(key, entry);
+            }
+        } else if (op < 95) {
+            mCache.remove(key);
+        } else if (withClears && op == 99 && random.nextInt(10) == 0) {
+            mCache.clear();
+        } else {
+            mCache.invalidate(key, random.nextBoolean());
+        }
+    }
+
+    /**
+     * Returns an entry for {@code key} whose body is filled with one byte derived from the
+     * key and a random length, with the length and fill also stored in its headers.
+     */
+    private static Cache.Entry newEntry(String key, Random random) {
+        int length = random.nextInt(32 * 1024);
+        byte fill = (byte) (key.hashCode() + random.nextInt(4));
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[length];
+        Arrays.fill(entry.data, fill);
+        entry.etag = key;
+        long far = System.currentTimeMillis() + 60 * 60 * 1000;
+        entry.ttl = far;
+        entry.softTtl = far;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Length", Integer.toString(length));
+        headers.put("Fill", Byte.toString(fill));
+        entry.responseHeaders = headers;
+        return entry;
+    }
+
+    /** Checks that {@code entry}, if not null, is whole and was put under {@code key}. */
+    private static void checkEntry(String key, Cache.Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        assertEquals(key, entry.etag);
+        int length = Integer.parseInt(entry.responseHeaders.get("Length"));
+        byte fill = Byte.parseByte(entry.responseHeaders.get("Fill"));
+        assertEquals(key, length, entry.getDataLength());
+        if (entry.dataBuffer != null) {
+            ByteBuffer buffer = entry.dataBuffer.duplicate();
+            while (buffer.hasRemaining()) {
+                assertEquals(key, fill, buffer.get());
+            }
+        } else {
+            for (byte b : entry.data) {
+                assertEquals(key, fill, b);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Times cache hits of bodies from 10 KB to 5 MB served by {@link DiskLruBasedCache} as
+ * memory-mapped buffers and as heap copies, each read through once as a parser would, and
+ * logs the mean time per hit next to the heap a hit keeps in use while its entry is held.
+ * {@code DiskLruBasedCache.MIN_MAPPED_BODY_BYTES} is the smallest of these sizes from which
+ * mapping was faster in every run: at 10 KB the heap copy wins, between 32 KB and 64 KB the
+ * two are within noise of each other.
+ */
+public class MappedBodyBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "MappedBodyBenchmark";
+
+    private static final int[] BODY_SIZES =
+            { 10 * 1024, 32 * 1024, 64 * 1024, 128 * 1024, 500 * 1024, 5 * 1024 * 1024 };
+
+    /** Bytes read per benchmark run of each size, so that every run takes a similar time. */
+    private static final long BYTES_PER_RUN = 200L * 1024 * 1024;
+
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    /** Samples taken of the heap a hit uses, of which the median is logged. */
+    private static final int HEAP_SAMPLES = 5;
+
+    private File mDirectory;
+    private DiskLruBasedCache mCache;
+    private final byte[] mChunk = new byte[CHUNK_BYTES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), TAG);
+        mCache = new DiskLruBasedCache(mDirectory, 64 * 1024 * 1024, 1);
+        mCache.initialize();
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear();
+        mCache.close();
+        super.tearDown();
+    }
+
+    public void testMappedAndHeapBodies() throws Exception {
+        Random random = new Random(0);
+        for (int size : BODY_SIZES) {
+            byte[] body = new byte[size];
+            random.nextBytes(body);
+            Cache.Entry entry = new Cache.Entry();
+            entry.data = body;
+            entry.ttl = Long.MAX_VALUE;
+            entry.softTtl = Long.MAX_VALUE;
+            entry.responseHeaders = Collections.emptyMap();
+            mCache.put("body" + size, entry);
+        }
+        for (int size : BODY_SIZES) {
+            int iterations = (int) Math.max(10, BYTES_PER_RUN / size);
+            // Warm up both paths, and the page cache, before timing either.
+            time(size, false, iterations / 4);
+            time(size, true, iterations / 4);
+            long heapNanos = time(size, false, iterations);
+            long mappedNanos = time(size, true, iterations);
+            long heapBytes = heapPerHit(size, false);
+            long mappedBytes = heapPerHit(size, true);
+            Log.i(TAG, String.format("%7d bytes: heap %8.1f us %8d B, mapped %8.1f us %8d B"
+                    + " per hit", size, heapNanos / 1000.0, heapBytes, mappedNanos / 1000.0,
+                    mappedBytes));
+        }
+    }
+
+    /** Returns the mean nanoseconds to get and read through the entry of {@code size}. */
+    private long time(int size, boolean mapped, int iterations) {
+        mCache.setMinMappedBodyBytes(mapped ? 0 : Integer.MAX_VALUE);
+        String key = "body" + size;
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Cache.Entry entry = mCache.get(key);
+            assertNotNull(entry);
+            assertEquals(mapped, entry.dataBuffer != null);
+            checksum += mapped ? sum(entry.dataBuffer.duplicate()) : sum(entry.data);
+        }
+        long elapsed = System.nanoTime() - start;
+        // Keeps the reads from being optimized away.
+        assertTrue(checksum != 1);
+        return elapsed / iterations;
+    }
+
+    /**
+     * Returns the heap bytes that a hit of the entry of {@code size} keeps in use while the
+     * entry is held, the median of a few samples taken after full collections.
+     */
+    private long heapPerHit(int size, boolean mapped) {
+        mCache.setMinMappedBodyBytes(mapped ? 0 : Integer.MAX_VALUE);
+        String key = "body" + size;
+        long[] samples = new long[HEAP_SAMPLES];
+        for (int i = 0; i < HEAP_SAMPLES; i++) {
+            long before = usedHeap();
+            Cache.Entry entry = mCache.get(key);
+            samples[i] = usedHeap() - before;
+            // Also keeps the entry reachable until the sample is taken.
+            assertEquals(mapped, entry.dataBuffer != null);
+        }
+        Arrays.sort(samples);
+        return samples[HEAP_SAMPLES / 2];
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long sum(byte[] data) {
+        long sum = 0;
+        for (byte b : data) {
+            sum += b;
+        }
+        return sum;
+    }
+
+    private long sum(ByteBuffer buffer) {
+        long sum = 0;
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), CHUNK_BYTES);
+            buffer.get(mChunk, 0, count);
+            for (int i = 0; i < count; i++) {
+                sum += mChunk[i];
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests replaying, compacting and trimming the segments of {@link SegmentLogCache}, and that
+ * large entries go to its cache for large entries.
+ */
+public class SegmentLogCacheTest extends AndroidTestCase {
+
+    /** Size at which the cache starts a new segment. */
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+
+    private static final int MAX_SMALL_ENTRY_BYTES = 16 * 1024;
+
+    /** Data size of the entries put, so that every record has the same length. */
+    private static final int DATA_BYTES = 10 * 1024;
+
+    private static final long TTL = Long.MAX_VALUE;
+
+    private File mDirectory;
+    private DiskLruBasedCache mLargeEntryCache;
+    private SegmentLogCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "SegmentLogCacheTest");
+        deleteRecursively(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        deleteRecursively(mDirectory);
+        super.tearDown();
+    }
+
+    public void testReplayStopsAtTornTail() throws Exception {
+        open(Integer.MAX_VALUE);
+        mCache.put("k000", newEntry(0, 0));
+        long firstRecordEnd = mCache.size();
+        mCache.put("k001", newEntry(1, 0));
+        mCache.close();
+
+        // As if the process died while appending the second record.
+        File segment = new File(mDirectory, "segment.0");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+
+        open(Integer.MAX_VALUE);
+        assertEntry(0, 0, mCache.get("k000"));
+        assertNull(mCache.get("k001"));
+        assertEquals(firstRecordEnd, segment.length());
+        assertEquals(firstRecordEnd, mCache.size());
+
+        // New records go to a new segment and replay after the truncated one.
+        mCache.put("k001", newEntry(1, 1));
+        mCache.close();
+        open(Integer.MAX_VALUE);
+        assertEntry(0, 0, mCache.get("k000"));
+        assertEntry(1, 1, mCache.get("k001"));
+    }
+
+    public void testRemoveMasksOlderSegment() throws Exception {
+        open(Integer.MAX_VALUE);
+        int perSegment = recordsPerSegment();
+        for (int i = 0; i < perSegment + 1; i++) {
+            mCache.put(key(i), newEntry(i, 0));
+        }
+        assertTrue(new File(mDirectory, "segment.1").exists());
+        // The tombstone lands in segment 1, the entry it removes is in segment 0.
+        mCache.remove(key(0));
+        assertNull(mCache.get(key(0)));
+        mCache.close();
+
+        open(Integer.MAX_VALUE);
+        assertNull(mCache.get(key(0)));
+        assertEntry(1, 0, mCache.get(key(1)));
+        assertEntry(perSegment, 0, mCache.get(key(perSegment)));
+
+        mCache.put(key(0), newEntry(0, 1));
+        mCache.close();
+        open(Integer.MAX_VALUE);
+        assertEntry(0, 1, mCache.get(key(0)));
+    }
+
+    public void testCompactsMostlyDeadSegment() throws Exception {
+        open(Integer.MAX_VALUE);
+        int perSegment = recordsPerSegment();
+        int keyCount = perSegment * 3 / 2;
+        for (int i = 0; i < keyCount; i++) {
+            mCache.put(key(i), newEntry(i, 0));
+        }
+        File firstSegment = new File(mDirectory, "segment.0");
+
+        // Segment 0 is still 60% live.
+        int overwritten = perSegment * 2 / 5;
+        for (int i = 0; i < overwritten; i++) {
+            mCache.put(key(i), newEntry(i, 1));
+        }
+        mCache.awaitCleanup();
+        assertFalse(mCache.hasCompactionVictim());
+        assertTrue(firstSegment.exists());
+        int puts = keyCount + overwritten;
+        assertEquals((long) puts * recordBytes(), mCache.size());
+
+        // Now only 20% is.
+        for (int i = overwritten; i < perSegment * 4 / 5; i++) {
+            mCache.put(key(i), newEntry(i, 1));
+            puts++;
+        }
+        mCache.awaitCleanup();
+        assertFalse(mCache.hasCompactionVictim());
+        assertFalse(firstSegment.exists());
+        assertTrue(mCache.size() < (long) puts * recordBytes());
+
+        // The live records of segment 0 were copied forward.
+        for (int i = 0; i < keyCount; i++) {
+            assertEntry(i, i < perSegment * 4 / 5 ? 1 : 0, mCache.get(key(i)));
+        }
+        mCache.close();
+        open(Integer.MAX_VALUE);
+        for (int i = 0; i < keyCount; i++) {
+            assertEntry(i, i < perSegment * 4 / 5 ? 1 : 0, mCache.get(key(i)));
+        }
+    }
+
+    public void testTrimDropsOldestSegment() throws Exception {
+        open(2 * SEGMENT_BYTES);
+        int perSegment = recordsPerSegment();
+        int keyCount = perSegment * 5 / 2;
+        for (int i = 0; i < keyCount; i++) {
+            mCache.put(key(i), newEntry(i, 0));
+        }
+        mCache.awaitCleanup();
+
+        assertFalse(new File(mDirectory, "segment.0").exists());
+        assertTrue(mCache.size() <= 2 * SEGMENT_BYTES);
+        assertEquals(perSegment, mCache.getStats().evictionCount());
+        for (int i = 0; i < keyCount; i++) {
+            if (i < perSegment) {
+                assertNull(mCache.get(key(i)));
+            } else {
+                assertEntry(i, 0, mCache.get(key(i)));
+            }
+        }
+    }
+
+    public void testLargeEntriesGoToLargeEntryCache() throws Exception {
+        open(Integer.MAX_VALUE);
+        Cache.Entry large = newEntry(7, 0);
+        large.data = new byte[MAX_SMALL_ENTRY_BYTES + 1];
+        Arrays.fill(large.data, (byte) 7);
+        mCache.put("key", large);
+        assertEquals(0, new File(mDirectory, "segment.0").length());
+        assertEquals(MAX_SMALL_ENTRY_BYTES + 1, mLargeEntryCache.get("key").data.length);
+        assertEquals(MAX_SMALL_ENTRY_BYTES + 1, mCache.get("key").data.length);
+
+        // Shrinking the entry moves it into the segments.
+        mCache.put("key", newEntry(7, 1));
+        assertNull(mLargeEntryCache.get("key"));
+        assertEntry(7, 1, mCache.get("key"));
+
+        mCache.put("key", large);
+        assertEquals(MAX_SMALL_ENTRY_BYTES + 1, mCache.get("key").data.length);
+        mCache.remove("key");
+        assertNull(mCache.get("key"));
+        assertNull(mLargeEntryCache.get("key"));
+    }
+
+    private void open(int maxSizeInBytes) {
+        mLargeEntryCache = new DiskLruBasedCache(new File(mDirectory, "large"), 1024 * 1024, 1);
+        mCache = new SegmentLogCache(mDirectory, maxSizeInBytes, MAX_SMALL_ENTRY_BYTES,
+                mLargeEntryCache);
+        mCache.initialize();
+    }
+
+    /** Returns the length of the record of each entry put by these tests. */
+    private int recordBytes() {
+        File directory = new File(getContext().getCacheDir(), "SegmentLogCacheTest-record");
+        deleteRecursively(directory);
+        SegmentLogCache cache = new SegmentLogCache(directory, Integer.MAX_VALUE,
+                MAX_SMALL_ENTRY_BYTES, new DiskLruBasedCache(new File(directory, "large"),
+                        1024 * 1024, 1));
+        cache.initialize();
+        try {
+            cache.put(key(0), newEntry(0, 0));
+            return (int) cache.size();
+        } finally {
+            cache.close();
+            deleteRecursively(directory);
+        }
+    }
+
+    /** Returns the number of records that fit in a segment. */
+    private int recordsPerSegment() {
+        return SEGMENT_BYTES / recordBytes();
+    }
+
+    /** Keys of the same length, so that every record has the same length. */
+    private static String key(int i) {
+        return String.format("k%03d", i);
+    }
+
+    private static Cache.Entry newEntry(int i, int version) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[DATA_BYTES];
+        Arrays.fill(entry.data, (byte) (i * 2 + version));
+        entry.ttl = TTL;
+        entry.softTtl = TTL;
+        entry.responseHeaders = Collections.emptyMap();
+        return entry;
+    }
+
+    private static void assertEntry(int i, int version, Cache.Entry entry) {
+        assertNotNull(key(i), entry);
+        byte[] expected = new byte[DATA_BYTES];
+        Arrays.fill(expected, (byte) (i * 2 + version));
+        assertTrue(key(i), Arrays.equals(expected, entry.data));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
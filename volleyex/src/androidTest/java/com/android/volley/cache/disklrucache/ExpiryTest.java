@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache.disklrucache;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.cache.Cache;
+import com.android.volley.cache.DiskLruBasedCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+/**
+ * Tests that expired entries are evicted ahead of the entries eviction mode would pick, and
+ * that expiry times survive reopening a {@link DiskLruCache}.
+ */
+public class ExpiryTest extends AndroidTestCase {
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "ExpiryTest");
+        deleteRecursively(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+        super.tearDown();
+    }
+
+    public void testExpiredEntryEvictedBeforeLruVictim() throws Exception {
+        assertExpiredEntryEvictedFirst(DiskLruCache.EvictionMode.LRU);
+    }
+
+    public void testExpiredEntryEvictedBeforeClockVictim() throws Exception {
+        assertExpiredEntryEvictedFirst(DiskLruCache.EvictionMode.CLOCK);
+    }
+
+    private void assertExpiredEntryEvictedFirst(DiskLruCache.EvictionMode mode)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, 1000, mode);
+        try {
+            set(cache, "oldest", 200, 0);
+            set(cache, "expired", 200, now - 1000);
+            set(cache, "young", 200, now + 60 * 60 * 1000);
+            // Used most recently, yet the first to go.
+            assertNotNull(get(cache, "expired"));
+            set(cache, "newest", 500, 0);
+            cache.flush();
+
+            assertFalse(contains(cache, "expired"));
+            assertTrue(contains(cache, "oldest"));
+            assertTrue(contains(cache, "young"));
+            assertTrue(contains(cache, "newest"));
+            assertEquals(1, cache.getExpiredEntryCount());
+            assertEquals(200, cache.getExpiredByteCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testExpiredEntryWithoutValidatorsEvictedFirst() throws Exception {
+        DiskLruBasedCache cache = new DiskLruBasedCache(mDirectory, 120 * 1000, 1);
+        cache.initialize();
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 4; i++) {
+                cache.put("fresh" + i, newEntry("etag" + i, now + 60 * 60 * 1000));
+            }
+            // Without a validator it can't be revalidated, so once past its ttl and the
+            // retention for stale-if-error it is of no use.
+            cache.put("stale", newEntry(null, now - 25 * 60 * 60 * 1000));
+            assertNotNull(cache.get("stale"));
+            cache.put("fresh4", newEntry("etag4", now + 60 * 60 * 1000));
+            cache.flush();
+
+            assertNull(cache.get("stale"));
+            for (int i = 0; i < 5; i++) {
+                assertNotNull("fresh" + i, cache.get("fresh" + i));
+            }
+            assertEquals(1, cache.getExpiredEntryCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testExpiryRestoredFromIndexSnapshot() throws Exception {
+        assertExpiryRestored(true);
+    }
+
+    public void testExpiryRestoredFromJournal() throws Exception {
+        assertExpiryRestored(false);
+    }
+
+    private void assertExpiryRestored(boolean fromSnapshot) throws Exception {
+        long now = System.currentTimeMillis();
+        long soon = now + 500;
+        DiskLruCache cache = open();
+        set(cache, "never", 10, 0);
+        set(cache, "soon", 10, soon);
+        set(cache, "later", 10, now + 60 * 60 * 1000);
+        cache.close();
+
+        File snapshot = new File(mDirectory, DiskLruCache.INDEX_SNAPSHOT_FILE);
+        assertTrue(snapshot.exists());
+        if (!fromSnapshot) {
+            // The expiring entries are then read back from their CLEAN_EXPIRING records.
+            assertTrue(snapshot.delete());
+        }
+        cache = open();
+        try {
+            assertEquals(30, cache.size());
+            while (System.currentTimeMillis() <= soon) {
+                Thread.sleep(soon - System.currentTimeMillis() + 1);
+            }
+            assertEquals(10, cache.sweepExpired());
+            assertFalse(contains(cache, "soon"));
+            assertTrue(contains(cache, "never"));
+            assertTrue(contains(cache, "later"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private DiskLruCache open() throws IOException {
+        return DiskLruCache.open(mDirectory, 1, 1, Long.MAX_VALUE, DiskLruCache.EvictionMode.CLOCK);
+    }
+
+    private static void set(DiskLruCache cache, String key, int length, long expiresAt)
+            throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        OutputStream os = editor.newOutputStream(0);
+        try {
+            os.write(new byte[length]);
+        } finally {
+            os.close();
+        }
+        editor.setExpiresAt(expiresAt);
+        editor.commit();
+    }
+
+    private static DiskLruCache.Snapshot get(DiskLruCache cache, String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        return snapshot;
+    }
+
+    /** Looks {@code key} up without counting it as a use. */
+    private static boolean contains(DiskLruCache cache, String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.peek(key);
+        if (snapshot == null) {
+            return false;
+        }
+        snapshot.close();
+        return true;
+    }
+
+    private static Cache.Entry newEntry(String etag, long ttl) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[20 * 1000];
+        entry.etag = etag;
+        entry.ttl = ttl;
+        entry.softTtl = ttl;
+        entry.responseHeaders = Collections.emptyMap();
+        return entry;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
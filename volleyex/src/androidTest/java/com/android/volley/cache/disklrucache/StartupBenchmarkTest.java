@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache.disklrucache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Times opening a {@link DiskLruCache} of 10,000 and 100,000 entries from the index
+ * snapshot written on close, and from the journal alone as after a crash, and logs both.
+ */
+public class StartupBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "StartupBenchmark";
+
+    private static final int RUNS = 3;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), TAG);
+        deleteContents(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteContents(mDirectory);
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testOpen10000Entries() throws Exception {
+        benchmarkOpen(10000);
+    }
+
+    public void testOpen100000Entries() throws Exception {
+        benchmarkOpen(100000);
+    }
+
+    private void benchmarkOpen(int entryCount) throws IOException {
+        DiskLruCache cache = open();
+        for (int i = 0; i < entryCount; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v");
+            editor.commit();
+        }
+        cache.close();
+
+        long fromSnapshot = Long.MAX_VALUE;
+        long fromJournal = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            fromSnapshot = Math.min(fromSnapshot, timeOpen(entryCount));
+            // Closing wrote the snapshot again; without it the whole journal is replayed.
+            assertTrue(new File(mDirectory, DiskLruCache.INDEX_SNAPSHOT_FILE).delete());
+            fromJournal = Math.min(fromJournal, timeOpen(entryCount));
+        }
+        Log.i(TAG, String.format("%d entries: open from snapshot %.1f ms, from journal %.1f ms",
+                entryCount, fromSnapshot / 1e6, fromJournal / 1e6));
+    }
+
+    /** Returns the nanoseconds taken to open the cache, after checking all entries loaded. */
+    private long timeOpen(int entryCount) throws IOException {
+        long start = System.nanoTime();
+        DiskLruCache cache = open();
+        long elapsed = System.nanoTime() - start;
+        try {
+            // Every value is one byte long.
+            assertEquals(entryCount, cache.size());
+        } finally {
+            cache.close();
+        }
+        return elapsed;
+    }
+
+    private DiskLruCache open() throws IOException {
+        return DiskLruCache.open(mDirectory, 1, 1, Long.MAX_VALUE, DiskLruCache.EvictionMode.CLOCK);
+    }
+
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
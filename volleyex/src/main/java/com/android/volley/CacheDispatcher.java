@@ -20,6 +20,8 @@ import com.android.volley.cache.Cache;
 
 import android.os.Process;
 
+import org.apache.http.HttpStatus;
+
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -108,31 +110,57 @@ public class CacheDispatcher extends Thread {
                     continue;
                 }
 
-                // Attempt to retrieve this item from cache.
-                Cache.Entry entry = mCache.get(request.getCacheKey());
+                // Attempt to retrieve this item from cache. Only the metadata is read at first,
+                // so an expired entry is revalidated without reading its body.
+                Request.CachePolicy policy = request.getCachePolicy();
+                Cache.Entry entry = mCache.getMetadata(request.getCacheKey());
                 if (entry == null) {
                     request.addMarker("cache-miss");
                     // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
+                    dispatchMiss(request, false);
                     continue;
                 }
 
-                // If it is completely expired, just send it to the network.
                 if (entry.isExpired()) {
-                    request.addMarker("cache-hit-expired");
-                    request.setCacheEntry(entry);
-                    mNetworkQueue.put(request);
+                    boolean serveStale = (policy == Request.CachePolicy.CACHE_ONLY
+                            || policy == Request.CachePolicy.CACHE_THEN_NETWORK)
+                            && entry.isStaleWithin(request.getMaxStale());
+                    if (!serveStale) {
+                        // If it is completely expired, just send it to the network.
+                        request.addMarker("cache-hit-expired");
+                        request.setCacheEntry(entry);
+                        dispatchMiss(request, true);
+                        continue;
+                    }
+                    request.addMarker("cache-hit-stale");
+                }
+
+                if (!entry.loadData()) {
+                    // The body went away after the metadata was read; treat it as a miss.
+                    request.addMarker("cache-miss");
+                    dispatchMiss(request, false);
                     continue;
                 }
 
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
+                NetworkResponse cachedResponse;
+                if (entry.data == null && entry.dataBuffer != null
+                        && request.acceptsMappedData()) {
+                    // Hand the mapped body over as is, instead of copying it onto the heap.
+                    cachedResponse = NetworkResponse.fromBuffer(HttpStatus.SC_OK,
+                            entry.dataBuffer, entry.responseHeaders, false, 0);
+                } else {
+                    cachedResponse = new NetworkResponse(entry.getData(), entry.responseHeaders);
+                }
+                Response<?> response = request.parseNetworkResponse(cachedResponse);
                 request.addMarker("cache-hit-parsed");
 
-                if (!entry.refreshNeeded()) {
-                    // Completely unexpired cache hit. Just deliver the response.
+                boolean refresh = policy == Request.CachePolicy.CACHE_THEN_NETWORK
+                        || (entry.refreshNeeded() && policy != Request.CachePolicy.CACHE_ONLY);
+                if (!refresh) {
+                    // Completely unexpired cache hit, or one the request won't refresh.
+                    // Just deliver the response.
                     mDelivery.postResponse(request, response);
                 } else {
                     // Soft-expired cache hit. We can deliver the cached response,
@@ -163,4 +191,16 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    /**
+     * Sends a request the cache can't serve to the network, or fails it with a
+     * {@link CacheMissError} if its policy is {@link Request.CachePolicy#CACHE_ONLY}.
+     */
+    private void dispatchMiss(Request<?> request, boolean tooStale) throws InterruptedException {
+        if (request.getCachePolicy() == Request.CachePolicy.CACHE_ONLY) {
+            mDelivery.postError(request, new CacheMissError(tooStale));
+            return;
+        }
+        mNetworkQueue.put(request);
+    }
 }
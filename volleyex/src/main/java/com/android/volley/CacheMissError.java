@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Indicates that a {@link Request.CachePolicy#CACHE_ONLY} request found no cached response it
+ * could serve.
+ */
+@SuppressWarnings("serial")
+public class CacheMissError extends VolleyError {
+    /** True if a response was cached but had expired longer ago than the request allows. */
+    public final boolean tooStale;
+
+    public CacheMissError(boolean tooStale) {
+        super(tooStale ? "Cached response is too stale" : "No cached response");
+        this.tooStale = tooStale;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact, immutable set of HTTP response headers.
+ *
+ * <p>Names and values are kept in a single flat array and looked up case-insensitively, so
+ * a response costs one array instead of a tree of map nodes. Well-known header names are
+ * replaced by shared constants when the headers are built, which keeps names read back from
+ * the network or the disk cache from being allocated over and over.</p>
+ *
+ * <p>Any {@link Map} method that would modify the headers throws
+ * {@link UnsupportedOperationException}; use a {@link Builder} to derive new headers.</p>
+ */
+public final class Headers extends AbstractMap<String, String> implements Serializable {
+    private static final long serialVersionUID = -20151207120000L;
+
+    /** Headers with no entries. */
+    public static final Headers EMPTY = new Headers(new String[0]);
+
+    /** Common header names, shared by every {@link Headers} instance. */
+    private static final String[] COMMON_NAMES = {
+        "Accept-Ranges",
+        "Access-Control-Allow-Origin",
+        "Age",
+        "Cache-Control",
+        "Connection",
+        "Content-Disposition",
+        "Content-Encoding",
+        "Content-Language",
+        "Content-Length",
+        "Content-Location",
+        "Content-Range",
+        "Content-Type",
+        "Date",
+        "ETag",
+        "Expires",
+        "Keep-Alive",
+        "Last-Modified",
+        "Link",
+        "Location",
+        "P3P",
+        "Pragma",
+        "Server",
+        "Set-Cookie",
+        "Strict-Transport-Security",
+        "Transfer-Encoding",
+        "Vary",
+        "Via",
+        "WWW-Authenticate",
+        "X-Android-Received-Millis",
+        "X-Android-Response-Source",
+        "X-Android-Selected-Protocol",
+        "X-Android-Sent-Millis",
+        "X-Cache",
+        "X-Content-Type-Options",
+        "X-Frame-Options",
+        "X-Powered-By",
+        "X-XSS-Protection",
+    };
+
+    /** Names at even indexes, the matching values at odd indexes. */
+    private final String[] mNamesAndValues;
+
+    private transient Set<Map.Entry<String, String>> mEntrySet;
+
+    private Headers(String[] namesAndValues) {
+        mNamesAndValues = namesAndValues;
+    }
+
+    /**
+     * Returns {@code headers} as {@link Headers}, copying them only when they are not
+     * already an instance of this class.
+     */
+    public static Headers of(Map<String, String> headers) {
+        if (headers instanceof Headers) {
+            return (Headers) headers;
+        }
+        if (headers == null || headers.isEmpty()) {
+            return EMPTY;
+        }
+        return new Builder(headers.size()).addAll(headers).build();
+    }
+
+    /**
+     * Returns the shared constant for {@code name} if it is a well-known header name,
+     * otherwise {@code name} itself.
+     */
+    public static String canonicalName(String name) {
+        for (String common : COMMON_NAMES) {
+            if (common.length() == name.length() && common.equalsIgnoreCase(name)) {
+                return common;
+            }
+        }
+        return name;
+    }
+
+    /** Returns the number of headers. */
+    @Override
+    public int size() {
+        return mNamesAndValues.length / 2;
+    }
+
+    /** Returns the name of the header at {@code index}. */
+    public String name(int index) {
+        return mNamesAndValues[index * 2];
+    }
+
+    /** Returns the value of the header at {@code index}. */
+    public String value(int index) {
+        return mNamesAndValues[index * 2 + 1];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    /** Returns the value of the header called {@code key}, ignoring case, or null. */
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = indexOf((String) key);
+        return index >= 0 ? mNamesAndValues[index + 1] : null;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < mNamesAndValues.length; i += 2) {
+            String candidate = mNamesAndValues[i];
+            // Canonical names let the common case succeed on an identity check.
+            if (candidate == name || candidate.equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return Headers.this.size();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int mNext = 0;
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mNamesAndValues.length;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(
+                    mNamesAndValues[mNext], mNamesAndValues[mNext + 1]);
+            mNext += 2;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Builds {@link Headers}. Adding a header whose name is already present (ignoring case)
+     * replaces the earlier value, as a case-insensitive map would.
+     */
+    public static final class Builder {
+        private String[] mNamesAndValues;
+        private int mCount;
+
+        public Builder() {
+            this(8);
+        }
+
+        /**
+         * @param expectedSize the number of headers that will probably be added
+         */
+        public Builder(int expectedSize) {
+            mNamesAndValues = new String[Math.max(expectedSize, 1) * 2];
+        }
+
+        /** Starts from a copy of {@code headers}. */
+        public Builder(Map<String, String> headers) {
+            this(headers.size() + 4);
+            addAll(headers);
+        }
+
+        /** Adds a header, ignoring it if either the name or the value is null. */
+        public Builder add(String name, String value) {
+            if (name == null || value == null) {
+                return this;
+            }
+            name = canonicalName(name);
+            for (int i = 0; i < mCount; i += 2) {
+                if (mNamesAndValues[i].equalsIgnoreCase(name)) {
+                    mNamesAndValues[i + 1] = value;
+                    return this;
+                }
+            }
+            if (mCount == mNamesAndValues.length) {
+                String[] grown = new String[mNamesAndValues.length * 2];
+                System.arraycopy(mNamesAndValues, 0, grown, 0, mCount);
+                mNamesAndValues = grown;
+            }
+            mNamesAndValues[mCount++] = name;
+            mNamesAndValues[mCount++] = value;
+            return this;
+        }
+
+        /** Adds every header of {@code headers}. */
+        public Builder addAll(Map<String, String> headers) {
+            if (headers instanceof Headers) {
+                Headers other = (Headers) headers;
+                for (int i = 0; i < other.size(); i++) {
+                    add(other.name(i), other.value(i));
+                }
+            } else {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    add(entry.getKey(), entry.getValue());
+                }
+            }
+            return this;
+        }
+
+        public Headers build() {
+            if (mCount == 0) {
+                return EMPTY;
+            }
+            String[] namesAndValues = new String[mCount];
+            System.arraycopy(mNamesAndValues, 0, namesAndValues, 0, mCount);
+            return new Headers(namesAndValues);
+        }
+    }
+}
@@ -39,5 +39,26 @@ class InternalUtils {
         return hash;
     }
 
+    /**
+     * Returns the SHA-1 of {@code parts} in hex. Each part is prefixed with its length, so
+     * moving bytes from one part to the next changes the hash.
+     */
+    public static String sha1Hash(byte[]... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte[] part : parts) {
+                int length = part != null ? part.length : -1;
+                digest.update(new byte[] {
+                        (byte) (length >>> 24), (byte) (length >>> 16),
+                        (byte) (length >>> 8), (byte) length });
+                if (part != null) {
+                    digest.update(part);
+                }
+            }
+            return convertToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
 }
@@ -146,6 +146,9 @@ public class NetworkDispatcher extends Thread {
                 mDelivery.postResponse(request, response);
             } catch (VolleyError volleyError) {
                 volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+                if (deliverStaleOnError(request, volleyError)) {
+                    continue;
+                }
                 parseAndDeliverNetworkError(request, volleyError);
             } catch (Exception e) {
                 VolleyLog.e(e, "Unhandled exception %s", e.toString());
@@ -156,6 +159,36 @@ public class NetworkDispatcher extends Thread {
         }
     }
 
+    /**
+     * Delivers the expired cache entry of a {@link Request.CachePolicy#STALE_IF_ERROR} request
+     * in place of a network failure or server error, if the request allows it to be that old.
+     *
+     * @return true if the stale response was delivered
+     */
+    private boolean deliverStaleOnError(Request<?> request, VolleyError error) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (request.getCachePolicy() != Request.CachePolicy.STALE_IF_ERROR || entry == null
+                || request.hasHadResponseDelivered()
+                || !entry.isStaleWithin(request.getMaxStale())) {
+            return false;
+        }
+        boolean networkFailed = error instanceof NetworkError || error instanceof TimeoutError;
+        boolean serverFailed = error instanceof ServerError && error.networkResponse != null
+                && error.networkResponse.statusCode >= 500;
+        if (!(networkFailed || serverFailed) || !entry.loadData()) {
+            return false;
+        }
+        Response<?> response = request.parseNetworkResponse(
+                new NetworkResponse(entry.getData(), entry.responseHeaders));
+        if (response == null || !response.isSuccess()) {
+            return false;
+        }
+        request.addMarker("network-error-served-stale");
+        request.markDelivered();
+        mDelivery.postResponse(request, response);
+        return true;
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
         error = request.parseNetworkError(error);
         mDelivery.postError(request, error);
@@ -19,7 +19,7 @@ package com.android.volley;
 import org.apache.http.HttpStatus;
 
 import java.io.Serializable;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -38,20 +38,36 @@ public class NetworkResponse implements Serializable{
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified, long networkTimeMs) {
+        this(statusCode, data, null, headers, notModified, networkTimeMs);
+    }
+
+    private NetworkResponse(int statusCode, byte[] data, ByteBuffer dataBuffer,
+            Map<String, String> headers, boolean notModified, long networkTimeMs) {
         this.statusCode = statusCode;
         this.data = data;
-        this.headers = headers;
+        this.dataBuffer = dataBuffer;
+        this.headers = Headers.of(headers);
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
     }
 
+    /**
+     * Creates a response whose body is only available as {@link #dataBuffer}, for requests
+     * that {@link Request#acceptsMappedData() accept} it. {@link #data} is null.
+     */
+    public static NetworkResponse fromBuffer(int statusCode, ByteBuffer dataBuffer,
+            Map<String, String> headers, boolean notModified, long networkTimeMs) {
+        return new NetworkResponse(statusCode, null, dataBuffer, headers, notModified,
+                networkTimeMs);
+    }
+
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified) {
         this(statusCode, data, headers, notModified, 0);
     }
 
     public NetworkResponse(byte[] data) {
-        this(HttpStatus.SC_OK, data, Collections.<String, String>emptyMap(), false, 0);
+        this(HttpStatus.SC_OK, data, Headers.EMPTY, false, 0);
     }
 
     public NetworkResponse(byte[] data, Map<String, String> headers) {
@@ -61,16 +77,30 @@ public class NetworkResponse implements Serializable{
     /** The HTTP status code. */
     public final int statusCode;
 
-    /** Raw data from this response. */
+    /** Raw data from this response; null when the body is only held by {@link #dataBuffer}. */
     public final byte[] data;
 
-    /** Response headers. */
-    public final Map<String, String> headers;
+    /**
+     * Read-only body served from cache without a heap copy, such as a memory-mapped region of
+     * the cache file, or null.
+     */
+    public final transient ByteBuffer dataBuffer;
+
+    /** Response headers, looked up case-insensitively. */
+    public final Headers headers;
 
     /** True if the server returned a 304 (Not Modified). */
     public final boolean notModified;
 
     /** Network roundtrip time in milliseconds. */
     public final long networkTimeMs;
+
+    /** Returns the length of the body, wherever it is held. */
+    public int getDataLength() {
+        if (data != null) {
+            return data.length;
+        }
+        return dataBuffer != null ? dataBuffer.remaining() : 0;
+    }
 }
 
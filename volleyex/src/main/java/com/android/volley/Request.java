@@ -30,6 +30,7 @@ import com.android.volley.toolbox.HttpHeaderParser;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -87,6 +88,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** The redirect url to use for 3xx http responses */
     private String mRedirectUrl;
 
+    /** Whether a redirect turned this request into a GET without a body. */
+    private boolean mRedirectedAsGet;
+
     /** The unique identifier of the request */
     private String mIdentifier;
 
@@ -110,6 +114,33 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** How this request uses the cache. */
+    private CachePolicy mCachePolicy = CachePolicy.CACHE_ELSE_NETWORK;
+
+    /** How long past its TTL a cached response may still be served, in milliseconds. */
+    private long mMaxStaleMs = Long.MAX_VALUE;
+
+    /** Whether the cache key includes a digest of the body and of {@link #mCacheKeyHeaders}. */
+    private boolean mCacheKeyIncludesBody = false;
+
+    /** Names of the request headers that are part of the cache key. */
+    private String[] mCacheKeyHeaders;
+
+    /** The cache key, computed once when it includes the body. */
+    private String mCacheKey;
+
+    /**
+     * Whether reading the body or headers for the cache key threw {@link AuthFailureError}, so
+     * that they are not read again each time the key is asked for.
+     */
+    private boolean mBodyCacheKeyFailed = false;
+
+    /** The method and URL cache key, built on first use. */
+    private String mDefaultCacheKey;
+
+    /** Largest response body this request accepts in bytes, or 0 for no limit. */
+    private int mMaxResponseBytes = 0;
+
     /** Whether or not this request has been canceled. */
     private boolean mCanceled = false;
 
@@ -168,9 +199,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Return the method for this request.  Can be one of the values in {@link Method}.
+     * This is {@link Method#GET} once a redirect, such as a 303 See Other, asked for the
+     * new URL to be fetched with a GET.
      */
     public int getMethod() {
-        return mMethod;
+        return mRedirectedAsGet ? Method.GET : mMethod;
     }
 
     /**
@@ -350,10 +383,98 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Returns the cache key for this request.  By default, this is the URL.
+     * Sets the redirect url to handle 3xx http responses, and whether it is fetched with a
+     * GET without a body from now on, whatever the method of this request.
+     */
+    public void setRedirectUrl(String redirectUrl, boolean asGet) {
+        mRedirectUrl = redirectUrl;
+        mRedirectedAsGet |= asGet;
+    }
+
+    /**
+     * Returns the cache key for this request.  By default, this is the method and the URL.
+     *
+     * @see #setCacheKeyIncludesBody(boolean, String...)
      */
     public String getCacheKey() {
-        return mMethod + ":" + mUrl;
+        if (mCacheKeyIncludesBody) {
+            String key = getBodyCacheKey();
+            if (key != null) {
+                return key;
+            }
+        }
+        String key = mDefaultCacheKey;
+        if (key == null) {
+            // Kept, so that the cache sees the same key instance and can reuse its hash.
+            key = mMethod + ":" + mUrl;
+            mDefaultCacheKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Set whether the cache key includes a digest of the request body and of the given request
+     * headers, so that requests which only differ in their body (such as read-only query
+     * POSTs) are cached and deduplicated separately. Takes effect only while the body and
+     * headers can be read; a request whose body throws {@link AuthFailureError} is not cached.
+     *
+     * @param includesBody whether to include the body in the cache key
+     * @param headerNames the request headers to include as well
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setCacheKeyIncludesBody(boolean includesBody, String... headerNames) {
+        mCacheKeyIncludesBody = includesBody;
+        mCacheKeyHeaders = headerNames;
+        mCacheKey = null;
+        mBodyCacheKeyFailed = false;
+        return this;
+    }
+
+    /**
+     * Returns the cache key including the digest of the body and the selected headers, or
+     * null if they could not be read. Header names are matched regardless of case.
+     */
+    private String getBodyCacheKey() {
+        String key = mCacheKey;
+        if (key == null) {
+            if (mBodyCacheKeyFailed) {
+                return null;
+            }
+            try {
+                Map<String, String> headers = getHeaders();
+                int headerCount = mCacheKeyHeaders != null ? mCacheKeyHeaders.length : 0;
+                byte[][] parts = new byte[1 + headerCount * 2][];
+                parts[0] = getBody();
+                for (int i = 0; i < headerCount; i++) {
+                    String name = mCacheKeyHeaders[i];
+                    String value = getHeaderIgnoreCase(headers, name);
+                    parts[1 + i * 2] = name.toLowerCase(Locale.US).getBytes("UTF-8");
+                    parts[2 + i * 2] = value != null ? value.getBytes("UTF-8") : null;
+                }
+                key = mMethod + ":" + mUrl + "#" + InternalUtils.sha1Hash(parts);
+            } catch (AuthFailureError e) {
+                mBodyCacheKeyFailed = true;
+                return null;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            mCacheKey = key;
+        }
+        return key;
+    }
+
+    /** Returns the value of the header called {@code name} in any case, or null if not set. */
+    private static String getHeaderIgnoreCase(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
     }
 
     /**
@@ -545,7 +666,85 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * Returns true if responses to this request should be cached.
      */
     public final boolean shouldCache() {
-        return mShouldCache && ImageScheme.isHttpScheme(mUrl);
+        if (!mShouldCache || !ImageScheme.isHttpScheme(mUrl)) {
+            return false;
+        }
+        // Without the body the key would collide with other queries to the same URL.
+        return !mCacheKeyIncludesBody || getBodyCacheKey() != null;
+    }
+
+    /**
+     * Set how this request uses the cache; {@link CachePolicy#CACHE_ELSE_NETWORK} by default.
+     * Policies other than {@link CachePolicy#NETWORK_ONLY} only apply if {@link #shouldCache()};
+     * a {@link CachePolicy#CACHE_ONLY} request that shouldn't be cached fails with a
+     * {@link CacheMissError} without going to the network.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setCachePolicy(CachePolicy cachePolicy) {
+        mCachePolicy = cachePolicy;
+        return this;
+    }
+
+    /**
+     * Returns how this request uses the cache.
+     */
+    public CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+
+    /**
+     * Set how long past its TTL a cached response may still be served by
+     * {@link CachePolicy#CACHE_ONLY}, {@link CachePolicy#CACHE_THEN_NETWORK} and
+     * {@link CachePolicy#STALE_IF_ERROR}. There is no bound by default.
+     *
+     * @param maxStaleMs the bound in milliseconds, 0 to never serve expired responses
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setMaxStale(long maxStaleMs) {
+        if (maxStaleMs < 0) {
+            throw new IllegalArgumentException("maxStaleMs < 0: " + maxStaleMs);
+        }
+        mMaxStaleMs = maxStaleMs;
+        return this;
+    }
+
+    /**
+     * Returns how long past its TTL a cached response may still be served, in milliseconds.
+     */
+    public long getMaxStale() {
+        return mMaxStaleMs;
+    }
+
+    /**
+     * Returns true if {@link #parseNetworkResponse(NetworkResponse)} can read a cached body
+     * from {@link NetworkResponse#dataBuffer} when {@link NetworkResponse#data} is null. Large
+     * cache hits are then handed over as a memory-mapped buffer instead of a heap copy.
+     */
+    public boolean acceptsMappedData() {
+        return false;
+    }
+
+    /**
+     * Set the largest response body this request accepts. Larger responses are abandoned as
+     * soon as their size is known and delivered as a {@link ResponseTooLargeError}.
+     *
+     * @param maxResponseBytes the limit in bytes, or 0 for no limit
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setMaxResponseBytes(int maxResponseBytes) {
+        if (maxResponseBytes < 0) {
+            throw new IllegalArgumentException("maxResponseBytes < 0: " + maxResponseBytes);
+        }
+        mMaxResponseBytes = maxResponseBytes;
+        return this;
+    }
+
+    /**
+     * Returns the largest response body this request accepts in bytes, or 0 for no limit.
+     */
+    public int getMaxResponseBytes() {
+        return mMaxResponseBytes;
     }
 
     // added by Johnny Shieh : JohnnyShieh17@gmail.com
@@ -585,6 +784,41 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
     // added end
 
+    /**
+     * How a request uses the cache. Responses are written to the cache under every policy,
+     * as far as {@link #shouldCache()} and their headers allow.
+     */
+    public enum CachePolicy {
+        /**
+         * Serves fresh cached responses, serves soft-expired ones and refreshes them from
+         * the network, and goes to the network for the rest. This is the default.
+         */
+        CACHE_ELSE_NETWORK,
+
+        /** Goes to the network without reading the cache. */
+        NETWORK_ONLY,
+
+        /**
+         * Serves the cached response, even expired up to {@link #getMaxStale()}, and never
+         * goes to the network; delivers a {@link CacheMissError} if there is none.
+         */
+        CACHE_ONLY,
+
+        /**
+         * Serves the cached response right away, even expired up to {@link #getMaxStale()},
+         * then always asks the network, and delivers its response too unless it is
+         * "Not Modified".
+         */
+        CACHE_THEN_NETWORK,
+
+        /**
+         * Like {@link #CACHE_ELSE_NETWORK}, but if the network fails or the server answers
+         * with a 5xx status, serves the expired cached response instead of the error,
+         * provided it expired no more than {@link #getMaxStale()} ago.
+         */
+        STALE_IF_ERROR
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
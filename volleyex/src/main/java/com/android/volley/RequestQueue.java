@@ -261,7 +261,13 @@ public class RequestQueue {
         request.addMarker("add-to-queue");
 
         // If the request is uncacheable, skip the cache queue and go straight to the network.
-        if (!request.shouldCache()) {
+        if (!readsCache(request)) {
+            if (request.getCachePolicy() == Request.CachePolicy.CACHE_ONLY) {
+                // Nothing cached may serve it, and it must not go to the network either.
+                request.addMarker("cache-only-uncacheable");
+                mDelivery.postError(request, new CacheMissError(false));
+                return request;
+            }
             mNetworkQueue.add(request);
             return request;
         }
@@ -295,7 +301,7 @@ public class RequestQueue {
      * has finished.
      *
      * <p>Releases waiting requests for <code>request.getCacheKey()</code> if
-     *      <code>request.shouldCache()</code>.</p>
+     *      the request went through the cache queue.</p>
      */
     <T> void finish(Request<T> request) {
         // Remove from the set of requests currently being processed.
@@ -308,7 +314,7 @@ public class RequestQueue {
           }
         }
 
-        if (request.shouldCache()) {
+        if (readsCache(request)) {
             synchronized (mWaitingRequests) {
                 String cacheKey = request.getCacheKey();
                 Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
@@ -325,6 +331,15 @@ public class RequestQueue {
         }
     }
 
+    /**
+     * Returns true if {@code request} goes through the cache queue, and so holds back later
+     * requests for the same cache key until it finishes.
+     */
+    private static boolean readsCache(Request<?> request) {
+        return request.shouldCache()
+                && request.getCachePolicy() != Request.CachePolicy.NETWORK_ONLY;
+    }
+
     public  <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
       synchronized (mFinishedListeners) {
         mFinishedListeners.add(listener);
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Indicates that the response body was larger than the request allows.
+ *
+ * @see Request#setMaxResponseBytes(int)
+ */
+@SuppressWarnings("serial")
+public class ResponseTooLargeError extends VolleyError {
+    /** The limit set on the request, in bytes. */
+    public final int maxResponseBytes;
+
+    public ResponseTooLargeError(int maxResponseBytes, long responseBytes) {
+        super("Response body of at least " + responseBytes + " bytes exceeds limit of "
+                + maxResponseBytes + " bytes");
+        this.maxResponseBytes = maxResponseBytes;
+    }
+}
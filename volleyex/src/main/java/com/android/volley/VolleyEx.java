@@ -16,6 +16,7 @@ package com.android.volley;
  */
 
 import com.android.volley.cache.DiskLruBasedCache;
+import com.android.volley.cache.TieredCache;
 import com.android.volley.toolbox.BasicNetwork;
 import com.android.volley.toolbox.HttpClientStack;
 import com.android.volley.toolbox.HttpStack;
@@ -40,6 +41,12 @@ public class VolleyEx {
     /** Default on-disk cache directory. */
     private static final String DEFAULT_CACHE_DIR = "volleyex";
 
+    /** Size of the in-memory cache tier in front of the disk cache. */
+    private static final int DEFAULT_MEMORY_CACHE_BYTES = 1024 * 1024;
+
+    /** Textual bodies from this size on are stored compressed in the disk cache. */
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
     private static RequestQueue mRequestQueue;
 
     public static synchronized void initialize(Context context) {
@@ -126,13 +133,16 @@ public class VolleyEx {
             e.printStackTrace();
         }
 
-        RequestQueue queue;
+        DiskLruBasedCache diskCache;
         if(maxDiskCacheBytes <= -1) {
             // No maximum size specified
-            queue = new RequestQueue(context, new DiskLruBasedCache(cacheDir, appVersion), network);
+            diskCache = new DiskLruBasedCache(cacheDir, appVersion);
         }else {
-            queue = new RequestQueue(context, new DiskLruBasedCache(cacheDir, maxDiskCacheBytes, appVersion), network);
+            diskCache = new DiskLruBasedCache(cacheDir, maxDiskCacheBytes, appVersion);
         }
+        diskCache.setCompressionThreshold(DEFAULT_COMPRESSION_THRESHOLD);
+        RequestQueue queue = new RequestQueue(context,
+                new TieredCache(diskCache, DEFAULT_MEMORY_CACHE_BYTES), network);
 
         queue.start();
 
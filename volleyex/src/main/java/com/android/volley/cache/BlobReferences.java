@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks which entries of a {@link DiskLruBasedCache} share each body blob, the entry that
+ * holds a body stored once for all the keys whose responses had the same bytes.
+ *
+ * <p>A blob is referenced by the set of entry names pointing at it rather than by a bare
+ * count, so that recording a reference twice is harmless: the references are rebuilt by a
+ * scan of the entry headers after the cache is opened, while puts and removals go on. Until
+ * that scan is complete, no blob is reported unreferenced.</p>
+ */
+final class BlobReferences {
+
+    /** Prefix of blob names; entry names are base32 hashes, which never contain it. */
+    private static final String BLOB_PREFIX = "b_";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> sDigests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MessageDigest does not support SHA-256");
+            }
+        }
+    };
+
+    private final Map<String, Set<String>> mReferences = new HashMap<String, Set<String>>();
+
+    /** The blob each referring entry points at, to release it when the entry is evicted. */
+    private final Map<String, String> mBlobs = new HashMap<String, String>();
+
+    private boolean mComplete;
+
+    /**
+     * @param complete true if every reference will be recorded through {@link #add}, as
+     *     for an empty cache; false if a scan is yet to record those already stored
+     */
+    BlobReferences(boolean complete) {
+        mComplete = complete;
+    }
+
+    /**
+     * Returns the name of the blob holding {@code body}: its SHA-256, so that bodies with
+     * different bytes don't share a blob in practice, whatever their origin.
+     */
+    static String blobKey(byte[] body) {
+        MessageDigest digest = sDigests.get();
+        byte[] hash = digest.digest(body);
+        char[] chars = new char[BLOB_PREFIX.length() + hash.length * 2];
+        BLOB_PREFIX.getChars(0, BLOB_PREFIX.length(), chars, 0);
+        int pos = BLOB_PREFIX.length();
+        for (byte b : hash) {
+            chars[pos++] = HEX_DIGITS[(b >> 4) & 0xf];
+            chars[pos++] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /** Returns true if {@code name} is the name of a blob rather than of an entry. */
+    static boolean isBlobKey(String name) {
+        return name.startsWith(BLOB_PREFIX);
+    }
+
+    /** Records that the entry named {@code hashkey} points at {@code blobKey}. */
+    synchronized void add(String blobKey, String hashkey) {
+        Set<String> referrers = mReferences.get(blobKey);
+        if (referrers == null) {
+            referrers = new HashSet<String>(4);
+            mReferences.put(blobKey, referrers);
+        }
+        referrers.add(hashkey);
+        mBlobs.put(hashkey, blobKey);
+    }
+
+    /**
+     * Records that the entry named {@code hashkey} no longer points at {@code blobKey}.
+     * @return true if nothing points at the blob any more, so that it can be removed
+     */
+    synchronized boolean release(String blobKey, String hashkey) {
+        if (blobKey.equals(mBlobs.get(hashkey))) {
+            mBlobs.remove(hashkey);
+        }
+        Set<String> referrers = mReferences.get(blobKey);
+        if (referrers != null) {
+            referrers.remove(hashkey);
+            if (!referrers.isEmpty()) {
+                return false;
+            }
+            mReferences.remove(blobKey);
+        }
+        return mComplete;
+    }
+
+    /**
+     * Records that the entry named {@code hashkey} is gone, whichever blob it pointed at.
+     * @return the blob, if nothing points at it any more, or null
+     */
+    synchronized String releaseEntry(String hashkey) {
+        String blobKey = mBlobs.get(hashkey);
+        return blobKey != null && release(blobKey, hashkey) ? blobKey : null;
+    }
+
+    /** Returns true if the blob can be removed, as nothing is known to point at it. */
+    synchronized boolean isUnreferenced(String blobKey) {
+        return mComplete && !mReferences.containsKey(blobKey);
+    }
+
+    /**
+     * Returns true if some entry may point at a blob, so that replacing or removing an entry
+     * has to read its header first.
+     */
+    synchronized boolean mayBeReferenced() {
+        return !mComplete || !mReferences.isEmpty();
+    }
+
+    /** Marks the references of the entries stored before the cache was opened recorded. */
+    synchronized void markComplete() {
+        mComplete = true;
+    }
+
+    /** Returns the number of blobs referenced. */
+    synchronized int size() {
+        return mReferences.size();
+    }
+}
@@ -0,0 +1,152 @@
+package com.android.volley.cache;
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates cached bodies of textual content types and inflates them again, reusing a few
+ * {@link Deflater} and {@link Inflater} instances so that their native buffers are not
+ * allocated for every entry.
+ */
+final class BodyCompressor {
+
+    /** Number of deflaters and of inflaters kept for reuse. */
+    private static final int MAX_POOLED = 4;
+
+    private static final ArrayDeque<Deflater> sDeflaters = new ArrayDeque<Deflater>();
+    private static final ArrayDeque<Inflater> sInflaters = new ArrayDeque<Inflater>();
+
+    private BodyCompressor() {
+    }
+
+    /**
+     * Returns true if a body with the given response headers is text that is likely to
+     * compress, and is not already stored encoded.
+     */
+    static boolean isCompressible(Map<String, String> responseHeaders) {
+        if (responseHeaders == null) {
+            return false;
+        }
+        String encoding = responseHeaders.get("Content-Encoding");
+        if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+            return false;
+        }
+        String contentType = responseHeaders.get("Content-Type");
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase(Locale.US);
+        return contentType.startsWith("text/") || contentType.contains("json")
+                || contentType.contains("xml") || contentType.contains("javascript");
+    }
+
+    /**
+     * Returns {@code data} deflated, or null if that would save less than an eighth of its
+     * size, in which case it is better stored as is.
+     */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = obtainDeflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length - data.length / 8];
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, length) : null;
+        } finally {
+            recycle(deflater);
+        }
+    }
+
+    /**
+     * Inflates {@code compressed}, which must expand to exactly {@code size} bytes.
+     */
+    static byte[] inflate(byte[] compressed, int size) throws IOException {
+        Inflater inflater = obtainInflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[size];
+            int length = 0;
+            while (!inflater.finished() && length < size) {
+                int count = inflater.inflate(data, length, size - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != size || !inflater.finished()) {
+                throw new IOException("Expected " + size + " inflated bytes, got " + length);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body: " + e.getMessage());
+        } finally {
+            recycle(inflater);
+        }
+    }
+
+    private static Deflater obtainDeflater() {
+        synchronized (sDeflaters) {
+            Deflater deflater = sDeflaters.poll();
+            if (deflater != null) {
+                return deflater;
+            }
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static Inflater obtainInflater() {
+        synchronized (sInflaters) {
+            Inflater inflater = sInflaters.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater();
+    }
+
+    private static void recycle(Deflater deflater) {
+        deflater.reset();
+        synchronized (sDeflaters) {
+            if (sDeflaters.size() < MAX_POOLED) {
+                sDeflaters.push(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    private static void recycle(Inflater inflater) {
+        inflater.reset();
+        synchronized (sInflaters) {
+            if (sInflaters.size() < MAX_POOLED) {
+                sInflaters.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
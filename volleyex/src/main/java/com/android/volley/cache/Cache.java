@@ -16,13 +16,24 @@
 
 package com.android.volley.cache;
 
-import java.util.Collections;
+import com.android.volley.Headers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
  * An interface for a cache keyed by a String with a byte array as data.
  */
 public interface Cache {
+    /**
+     * How long disk caches keep entries without validators past their ttl, for requests with
+     * the {@link com.android.volley.Request.CachePolicy#STALE_IF_ERROR} policy and the like.
+     * Once that has passed too, such entries are of no further use and are evicted first.
+     */
+    public static final long STALE_RETENTION_MS = 24 * 60 * 60 * 1000L;
+
     /**
      * Retrieves an entry from the cache.
      * @param key Cache key
@@ -30,6 +41,16 @@ public interface Cache {
      */
     public Entry get(String key);
 
+    /**
+     * Retrieves the metadata of an entry, reading its data only when the entry is asked for
+     * it. Use this when the data may not be needed, such as for an expired entry that will
+     * only be revalidated.
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss; its data may be loaded
+     *     later through {@link Entry#loadData()} or {@link Entry#getData()}
+     */
+    public Entry getMetadata(String key);
+
     /**
      * Adds or replaces an entry to the cache.
      * @param key Cache key
@@ -78,13 +99,88 @@ public interface Cache {
     public void close();
     // added end
 
+    /**
+     * Returns a snapshot of the cache's hit, miss, put and eviction counts, the bytes it read
+     * and wrote, and how long its gets and puts took, since it was created.
+     */
+    public CacheStats getStats();
+
+    /**
+     * Loads the data of an entry returned by {@link Cache#getMetadata(String)}.
+     */
+    public interface BodyLoader {
+        /**
+         * Sets the data of {@code entry}, or returns false if it is no longer in the cache.
+         */
+        boolean load(Entry entry);
+    }
+
+    /**
+     * Loads the data of an entry by looking its key up again, provided the entry found has the
+     * same validators as the metadata that was returned, so the data matches them.
+     */
+    public static class ReloadingBodyLoader implements BodyLoader {
+        private final Cache mCache;
+        private final String mKey;
+
+        public ReloadingBodyLoader(Cache cache, String key) {
+            mCache = cache;
+            mKey = key;
+        }
+
+        /**
+         * Looks the key up again. Caches override this to skip counting the lookup in
+         * {@link Cache#getStats()}, since the metadata lookup was counted already.
+         */
+        protected Entry lookup(String key) {
+            return mCache.get(key);
+        }
+
+        @Override
+        public boolean load(Entry entry) {
+            Entry found = lookup(mKey);
+            if (found == null || found.serverDate != entry.serverDate
+                    || found.lastModified != entry.lastModified
+                    || (found.etag == null ? entry.etag != null : !found.etag.equals(entry.etag))) {
+                return false;
+            }
+            entry.data = found.data;
+            entry.dataBuffer = found.dataBuffer;
+            return entry.data != null || entry.dataBuffer != null;
+        }
+    }
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
     public static class Entry {
-        /** The data returned from cache. */
+        /** Size of the chunks {@link #writeDataTo(OutputStream)} copies out of {@link #dataBuffer}. */
+        private static final int WRITE_CHUNK_BYTES = 64 * 1024;
+
+        /**
+         * The data returned from cache. May be null when the cache only provided
+         * {@link #dataBuffer}; use {@link #getData()} to read it either way.
+         */
         public byte[] data;
 
+        /**
+         * The data as a read-only buffer, such as a memory-mapped region of the cache file,
+         * when the cache did not copy it onto the heap; null otherwise.
+         */
+        public ByteBuffer dataBuffer;
+
+        /**
+         * Loads {@link #data} or {@link #dataBuffer} on first use, for entries returned by
+         * {@link Cache#getMetadata(String)}; null once loaded and for complete entries.
+         */
+        public BodyLoader bodyLoader;
+
+        /**
+         * Length of the data recorded with the metadata, so it can be known without loading
+         * the data; -1 if unknown.
+         */
+        public int dataLength = -1;
+
         /** ETag for cache coherency. */
         public String etag;
 
@@ -101,13 +197,95 @@ public interface Cache {
         public long softTtl;
 
         /** Immutable response headers as received from server; must be non-null. */
-        public Map<String, String> responseHeaders = Collections.emptyMap();
+        public Map<String, String> responseHeaders = Headers.EMPTY;
+
+        /**
+         * Loads the data of an entry returned by {@link Cache#getMetadata(String)} into
+         * {@link #data} or {@link #dataBuffer} without copying a buffer onto the heap.
+         *
+         * @return false if the data is no longer in the cache
+         */
+        public boolean loadData() {
+            if (data == null && dataBuffer == null && bodyLoader != null) {
+                BodyLoader loader = bodyLoader;
+                bodyLoader = null;
+                return loader.load(this);
+            }
+            return data != null || dataBuffer != null;
+        }
+
+        /**
+         * Returns the data, copying it out of {@link #dataBuffer} first if that is where the
+         * cache left it.
+         */
+        public byte[] getData() {
+            loadData();
+            if (data == null && dataBuffer != null) {
+                ByteBuffer buffer = dataBuffer.duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                data = bytes;
+            }
+            return data;
+        }
+
+        /** Returns the length of the data, without copying it onto the heap. */
+        public int getDataLength() {
+            if (data == null && dataBuffer == null && bodyLoader != null && dataLength >= 0) {
+                return dataLength;
+            }
+            loadData();
+            if (data != null) {
+                return data.length;
+            }
+            return dataBuffer != null ? dataBuffer.remaining() : 0;
+        }
+
+        /** Writes the data to {@code os}, in chunks when it is only held by {@link #dataBuffer}. */
+        public void writeDataTo(OutputStream os) throws IOException {
+            loadData();
+            if (data != null || dataBuffer == null) {
+                os.write(getData());
+                return;
+            }
+            ByteBuffer buffer = dataBuffer.duplicate();
+            byte[] chunk = new byte[Math.min(buffer.remaining(), WRITE_CHUNK_BYTES)];
+            while (buffer.hasRemaining()) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                os.write(chunk, 0, count);
+            }
+        }
+
+        /**
+         * Returns a copy of this entry's fields. The data, its buffer and the immutable
+         * headers are shared with this entry.
+         */
+        public Entry copy() {
+            Entry copy = new Entry();
+            copy.data = data;
+            copy.dataBuffer = dataBuffer;
+            copy.bodyLoader = bodyLoader;
+            copy.dataLength = dataLength;
+            copy.etag = etag;
+            copy.serverDate = serverDate;
+            copy.lastModified = lastModified;
+            copy.ttl = ttl;
+            copy.softTtl = softTtl;
+            copy.responseHeaders = responseHeaders;
+            return copy;
+        }
 
         /** True if the entry is expired. */
         public boolean isExpired() {
             return this.ttl < System.currentTimeMillis();
         }
 
+        /** True if the entry is not expired, or expired no more than {@code maxStaleMs} ago. */
+        public boolean isStaleWithin(long maxStaleMs) {
+            return System.currentTimeMillis() - this.ttl <= maxStaleMs;
+        }
+
         /** True if a refresh is needed from the original data source. */
         public boolean refreshNeeded() {
             return this.softTtl < System.currentTimeMillis();
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.Locale;
+
+/**
+ * Counts of what a {@link Cache} did since it was created, as returned by
+ * {@link Cache#getStats()}. Instances are immutable; take another snapshot to see newer
+ * counts, and subtract two to get the activity in between.
+ */
+public final class CacheStats {
+
+    /** Stats of a cache that has done nothing. */
+    public static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0,
+            Latency.EMPTY, Latency.EMPTY);
+
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mPutCount;
+    private final long mEvictionCount;
+    private final long mBytesRead;
+    private final long mBytesWritten;
+    private final Latency mGetLatency;
+    private final Latency mPutLatency;
+
+    CacheStats(long hitCount, long missCount, long putCount, long evictionCount,
+            long bytesRead, long bytesWritten, Latency getLatency, Latency putLatency) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mPutCount = putCount;
+        mEvictionCount = evictionCount;
+        mBytesRead = bytesRead;
+        mBytesWritten = bytesWritten;
+        mGetLatency = getLatency;
+        mPutLatency = putLatency;
+    }
+
+    /** Returns the number of lookups that found an entry. */
+    public long hitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of lookups that found nothing. */
+    public long missCount() {
+        return mMissCount;
+    }
+
+    /** Returns the number of lookups, hits and misses. */
+    public long requestCount() {
+        return mHitCount + mMissCount;
+    }
+
+    /** Returns the share of lookups that found an entry, or 1 if there were none. */
+    public double hitRate() {
+        long requests = requestCount();
+        return requests == 0 ? 1.0 : (double) mHitCount / requests;
+    }
+
+    /** Returns the share of lookups that found nothing, or 0 if there were none. */
+    public double missRate() {
+        long requests = requestCount();
+        return requests == 0 ? 0.0 : (double) mMissCount / requests;
+    }
+
+    /** Returns the number of entries stored. */
+    public long putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * Returns the number of entries the cache dropped on its own, to stay within its size or
+     * because they expired; removals asked for by callers don't count.
+     */
+    public long evictionCount() {
+        return mEvictionCount;
+    }
+
+    /** Returns the number of bytes of entry data read from storage. */
+    public long bytesRead() {
+        return mBytesRead;
+    }
+
+    /** Returns the number of bytes of entry data written to storage. */
+    public long bytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Returns how long lookups took, whether they hit or missed. */
+    public Latency getLatency() {
+        return mGetLatency;
+    }
+
+    /** Returns how long puts took. */
+    public Latency putLatency() {
+        return mPutLatency;
+    }
+
+    /** Returns the counts of what happened between {@code earlier} and this snapshot. */
+    public CacheStats minus(CacheStats earlier) {
+        return new CacheStats(mHitCount - earlier.mHitCount,
+                mMissCount - earlier.mMissCount,
+                mPutCount - earlier.mPutCount,
+                mEvictionCount - earlier.mEvictionCount,
+                mBytesRead - earlier.mBytesRead,
+                mBytesWritten - earlier.mBytesWritten,
+                mGetLatency.minus(earlier.mGetLatency),
+                mPutLatency.minus(earlier.mPutLatency));
+    }
+
+    /** Returns these stats with {@code count} more evictions. */
+    CacheStats plusEvictions(long count) {
+        return new CacheStats(mHitCount, mMissCount, mPutCount, mEvictionCount + count,
+                mBytesRead, mBytesWritten, mGetLatency, mPutLatency);
+    }
+
+    /**
+     * Returns these lookup and put counts with the evictions and bytes moved of
+     * {@code storage} added, for a cache that keeps some or all of its entries in another.
+     */
+    CacheStats plusStorage(CacheStats storage) {
+        return new CacheStats(mHitCount, mMissCount, mPutCount,
+                mEvictionCount + storage.mEvictionCount,
+                mBytesRead + storage.mBytesRead,
+                mBytesWritten + storage.mBytesWritten,
+                mGetLatency, mPutLatency);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "CacheStats{hits=%d, misses=%d, hitRate=%.3f, puts=%d, evictions=%d, "
+                        + "bytesRead=%d, bytesWritten=%d, get=%s, put=%s}",
+                mHitCount, mMissCount, hitRate(), mPutCount, mEvictionCount,
+                mBytesRead, mBytesWritten, mGetLatency, mPutLatency);
+    }
+
+    /**
+     * A histogram of durations in buckets of powers of two microseconds: bucket 0 counts the
+     * calls that took less than 1us, and bucket {@code i} those that took from
+     * 2<sup>i-1</sup> to 2<sup>i</sup>us. The last bucket also takes everything slower.
+     */
+    public static final class Latency {
+
+        /** Number of buckets, enough for calls of up to about 8 seconds. */
+        public static final int BUCKET_COUNT = 24;
+
+        static final Latency EMPTY = new Latency(new long[BUCKET_COUNT], 0);
+
+        private final long[] mBuckets;
+        private final long mTotalNanos;
+
+        Latency(long[] buckets, long totalNanos) {
+            mBuckets = buckets;
+            mTotalNanos = totalNanos;
+        }
+
+        /** Returns the bucket a call that took {@code nanos} falls in. */
+        static int bucketOf(long nanos) {
+            long micros = nanos / 1000;
+            if (micros <= 0) {
+                return 0;
+            }
+            return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+        }
+
+        /** Returns the number of calls timed. */
+        public long count() {
+            long count = 0;
+            for (long bucket : mBuckets) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        /** Returns the number of calls in each bucket. */
+        public long[] bucketCounts() {
+            return mBuckets.clone();
+        }
+
+        /** Returns the mean duration in microseconds, or 0 if nothing was timed. */
+        public double meanMicros() {
+            long count = count();
+            return count == 0 ? 0 : mTotalNanos / 1000.0 / count;
+        }
+
+        /**
+         * Returns the upper bound in microseconds of the bucket holding the given percentile,
+         * so that at least that share of calls took less; 0 if nothing was timed.
+         * @param percentile from 0 to 100
+         */
+        public long percentileMicros(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (mBuckets.length - 1);
+        }
+
+        Latency minus(Latency earlier) {
+            long[] buckets = new long[mBuckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets[i] - earlier.mBuckets[i];
+            }
+            return new Latency(buckets, mTotalNanos - earlier.mTotalNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "{n=%d, mean=%.1fus, p50<%dus, p99<%dus}",
+                    count(), meanMicros(), percentileMicros(50), percentileMicros(99));
+        }
+    }
+}
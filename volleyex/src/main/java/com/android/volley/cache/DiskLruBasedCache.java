@@ -15,18 +15,31 @@ package com.android.volley.cache;
  * limitations under the License.
  */
 
+import android.os.Process;
+
+import com.android.volley.Headers;
 import com.android.volley.VolleyLog;
 import com.android.volley.cache.disklrucache.DiskLruCache;
+import com.android.volley.utils.KeyHashUtils;
 import com.android.volley.utils.MD5Utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author: Johnny Shieh
@@ -35,13 +48,13 @@ import java.util.Map;
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. And this is base on DiskLruCache.
  */
-public class DiskLruBasedCache implements Cache {
+public class DiskLruBasedCache implements ResizableCache {
 
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
-    /** The maximum size of the cache in bytes. */
-    private final int mMaxCacheSizeInBytes;
+    /** The maximum size of the cache in bytes, also used when the cache is reopened. */
+    private volatile long mMaxCacheSizeInBytes;
 
     /** The App version, if this changes all the cache will clear. */
     private final int mAppVersion;
@@ -49,17 +62,116 @@ public class DiskLruBasedCache implements Cache {
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 10 * 1024 * 1024;
 
-    /** Default number cache corresponding to one cache key. */
-    private static final int DEFAULT_KEY_VALUE_COUNT = 1;
+    /**
+     * Number of values stored for one cache key: the header and the body, in files of their
+     * own so that the header can be rewritten without copying the body.
+     */
+    private static final int DEFAULT_KEY_VALUE_COUNT = 2;
+
+    /**
+     * Number of values per key of caches written before headers and bodies were split; their
+     * entries are split in place when the cache is opened.
+     */
+    private static final int LEGACY_KEY_VALUE_COUNT = 1;
+
+    /** Index of the value holding the {@link CacheHeader} of an entry. */
+    private static final int METADATA_INDEX = 0;
 
-    /** Default index of the DiskLruCache.Editor.newInputStream method. */
-    private static final int DEFAULT_DISK_VALUE_INDEX = 0;
+    /** Index of the value holding the body of an entry. */
+    private static final int BODY_INDEX = 1;
+
+    /** How often expired entries are removed in the background. */
+    private static final long DEFAULT_EXPIRY_SWEEP_INTERVAL_MS = 5 * 60 * 1000;
 
     /** Magic number for current version of cache file format. */
-    private static final int CACHE_MAGIC = 0x20150306;
+    private static final int CACHE_MAGIC = 0x20151209;
+
+    /** Magic number of the format whose header fields were read one byte at a time. */
+    private static final int LEGACY_CACHE_MAGIC = 0x20150306;
+
+    /**
+     * Bodies of at least this many bytes are memory-mapped instead of copied onto the heap.
+     * Below it, mapping a file costs more than the copy it saves; see MappedBodyBenchmarkTest.
+     */
+    private static final int MIN_MAPPED_BODY_BYTES = 128 * 1024;
+
+    /** Largest header accepted when reading, to fail fast on corrupt files. */
+    private static final int MAX_HEADER_BYTES = 1024 * 1024;
+
+    /** Header flag of bodies that are stored deflated, see {@link BodyCompressor}. */
+    private static final int FLAG_DEFLATED = 1;
+
+    /** Header flag of bodies that are stored in a blob shared with other entries. */
+    private static final int FLAG_SHARED_BODY = 2;
+
+    /**
+     * Header flag of bodies that follow a stale copy of the header in their file, as left by
+     * splitting an entry written with {@link #LEGACY_KEY_VALUE_COUNT} values.
+     */
+    private static final int FLAG_BODY_OFFSET = 4;
+
+    /** Length of the file names of entries written before keys were hashed with Murmur3. */
+    private static final int LEGACY_HASH_LENGTH = 32;
+
+    /**
+     * Infix of the names that cleared cache directories are renamed to, next to the root
+     * directory, until they are deleted in the background.
+     */
+    private static final String TOMBSTONE_INFIX = ".cleared-";
+
+    /** Number of locks that writes to different keys are spread over. */
+    private static final int KEY_LOCK_STRIPES = 32;
 
     /** The Disk Cache store data on specified directory. */
-    private DiskLruCache mDiskLruCache;
+    private volatile DiskLruCache mDiskLruCache;
+
+    /**
+     * Held for reading by every operation on a single entry, and for writing while the
+     * underlying DiskLruCache is opened, cleared or closed.
+     */
+    private final ReadWriteLock mLifecycleLock = new ReentrantReadWriteLock();
+
+    /**
+     * Serialize writes, removals and invalidations of the same key. Reads take no key lock,
+     * since a DiskLruCache snapshot is always a complete committed value.
+     */
+    private final Object[] mKeyLocks = new Object[KEY_LOCK_STRIPES];
+
+    /**
+     * Serialize the creation, referencing and removal of the same blob. Always taken after
+     * the key lock, never before, so they are kept apart from {@link #mKeyLocks}.
+     */
+    private final Object[] mBlobLocks = new Object[KEY_LOCK_STRIPES];
+
+    /**
+     * Number of entries still stored under their legacy MD5 name, see
+     * {@link #legacyHashKey(String)}. They are moved to their current name when first read.
+     */
+    private final AtomicInteger mLegacyEntryCount = new AtomicInteger();
+
+    /** Entries pointing at each shared body blob of the open disk cache. */
+    private volatile BlobReferences mBlobReferences = new BlobReferences(true);
+
+    /**
+     * Blobs left unreferenced by evictions, to be removed by the next put; the disk cache
+     * can't be called back while it evicts.
+     */
+    private final Queue<String> mOrphanedBlobs = new ConcurrentLinkedQueue<String>();
+
+    /** Counts for {@link #getStats()}, apart from evictions of the open disk cache. */
+    private final StatsCounter mStats = new StatsCounter();
+
+    /** Smallest textual body that is stored compressed, or -1 to store every body as is. */
+    private volatile int mCompressionThreshold = -1;
+
+    /** Smallest body that is served memory-mapped, see {@link #MIN_MAPPED_BODY_BYTES}. */
+    private volatile int mMinMappedBodyBytes = MIN_MAPPED_BODY_BYTES;
+
+    /** Smallest body that is stored in a shared blob, or -1 to store every body inline. */
+    private volatile int mSharedBodyThreshold = -1;
+
+    /** Admission policy applied to the disk cache, now and whenever it is reopened. */
+    private volatile DiskLruCache.AdmissionPolicy mAdmissionPolicy = DiskLruCache.AdmissionPolicy.ALWAYS;
 
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
@@ -70,6 +182,10 @@ public class DiskLruBasedCache implements Cache {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
         mAppVersion = appVersion;
+        for (int i = 0; i < mKeyLocks.length; i++) {
+            mKeyLocks[i] = new Object();
+            mBlobLocks[i] = new Object();
+        }
     }
 
     /**
@@ -81,12 +197,112 @@ public class DiskLruBasedCache implements Cache {
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES, appVersion);
     }
 
+    @Override
+    public long getMaxSize() {
+        return mMaxCacheSizeInBytes;
+    }
+
+    @Override
+    public void setMaxSize(long maxSizeInBytes) {
+        mLifecycleLock.readLock().lock();
+        try {
+            mMaxCacheSizeInBytes = maxSizeInBytes;
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                mDiskLruCache.setMaxSize(maxSizeInBytes);
+            }
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the size from which bodies of textual content types (text, JSON, XML and
+     * JavaScript) are stored deflated, so that the same disk budget holds more of them.
+     * Bodies are inflated again when read, so they can't be memory-mapped. Entries written
+     * before this is changed are read as they were stored.
+     * @param minBodyBytes the smallest body to compress, or -1 to disable compression
+     */
+    public void setCompressionThreshold(int minBodyBytes) {
+        mCompressionThreshold = minBodyBytes;
+    }
+
+    /**
+     * Sets the size from which bodies are stored once per distinct content rather than once
+     * per key: the entry keeps its own header and points at a blob named after the SHA-256
+     * of the body, which other entries with the same bytes share. The blob is removed with
+     * the last entry pointing at it. This suits images reached through several URLs, such as
+     * with tracking parameters or before and after a redirect. Entries written before this
+     * is changed are read as they were stored.
+     * @param minBodyBytes the smallest body to share, or -1 to disable sharing
+     */
+    public void setSharedBodyThreshold(int minBodyBytes) {
+        mSharedBodyThreshold = minBodyBytes;
+    }
+
+    /**
+     * Sets the smallest body that is served as a memory-mapped buffer rather than copied
+     * onto the heap; {@link Integer#MAX_VALUE} to copy every body.
+     */
+    // Visible for testing.
+    void setMinMappedBodyBytes(int minBodyBytes) {
+        mMinMappedBodyBytes = minBodyBytes;
+    }
+
+    /**
+     * Sets whether new entries are always stored or, with
+     * {@link DiskLruCache.AdmissionPolicy#TINY_LFU}, only when they are asked for more
+     * often than the entry they would evict. TinyLFU keeps a feed of images seen once
+     * from pushing out the responses that are read all the time.
+     */
+    public void setAdmissionPolicy(DiskLruCache.AdmissionPolicy policy) {
+        mLifecycleLock.readLock().lock();
+        try {
+            mAdmissionPolicy = policy;
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                mDiskLruCache.setAdmissionPolicy(policy);
+            }
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of new entries dropped by the admission policy. */
+    public long getRejectedAdmissionCount() {
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            return mDiskLruCache.getRejectedAdmissionCount();
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
     /**
      * Initializes the DiskLruBasedCache for the specified directory.
-     * Creates the root directory if necessary.
+     * Creates the root directory if necessary, and deletes what is left of directories
+     * cleared before the process last stopped.
      */
     @Override
-    public synchronized void initialize() {
+    public void initialize() {
+        mLifecycleLock.writeLock().lock();
+        try {
+            openDiskLruCache();
+            File parent = mRootDirectory.getAbsoluteFile().getParentFile();
+            File[] siblings = parent != null ? parent.listFiles() : null;
+            if (siblings != null) {
+                String prefix = mRootDirectory.getName() + TOMBSTONE_INFIX;
+                for (File sibling : siblings) {
+                    if (sibling.getName().startsWith(prefix)) {
+                        deleteInBackground(sibling);
+                    }
+                }
+            }
+        } finally {
+            mLifecycleLock.writeLock().unlock();
+        }
+    }
+
+    private void openDiskLruCache() {
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
@@ -95,46 +311,224 @@ public class DiskLruBasedCache implements Cache {
         }
 
         try {
-            mDiskLruCache = DiskLruCache.open(mRootDirectory, mAppVersion, DEFAULT_KEY_VALUE_COUNT, mMaxCacheSizeInBytes);
+            // CLOCK eviction keeps cache hits from writing to the journal.
+            mDiskLruCache = DiskLruCache.open(mRootDirectory, mAppVersion, DEFAULT_KEY_VALUE_COUNT,
+                    mMaxCacheSizeInBytes, DiskLruCache.EvictionMode.CLOCK,
+                    LEGACY_KEY_VALUE_COUNT, SPLIT_UPGRADER);
+            mDiskLruCache.setExpirySweepInterval(DEFAULT_EXPIRY_SWEEP_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+            mDiskLruCache.setAdmissionPolicy(mAdmissionPolicy);
+            boolean hasBlobs = false;
+            int legacyEntries = 0;
+            for (String name : mDiskLruCache.getKeys()) {
+                if (BlobReferences.isBlobKey(name)) {
+                    hasBlobs = true;
+                } else if (name.length() == LEGACY_HASH_LENGTH) {
+                    legacyEntries++;
+                }
+            }
+            mLegacyEntryCount.set(legacyEntries);
+            mBlobReferences = new BlobReferences(!hasBlobs);
+            mOrphanedBlobs.clear();
+            mDiskLruCache.setEvictionListener(new BlobReleaser(mBlobReferences));
+            if (hasBlobs) {
+                startBlobScan(mDiskLruCache, mBlobReferences);
+            }
         }catch (IOException e) {
             VolleyLog.e(e, "Unable to create DiskLruCache.");
         }
     }
 
     /**
-     * Invalidates an entry in the cache.
+     * Splits an entry written with a single value, its header followed by its body, into a
+     * header value and a body value. The old file becomes the body value as it is, rather
+     * than being copied, and the new header records how much of it to skip.
+     */
+    private static final DiskLruCache.ValueUpgrader SPLIT_UPGRADER =
+            new DiskLruCache.ValueUpgrader() {
+        @Override
+        public boolean upgrade(String key, File[] oldValues, File[] newValues)
+                throws IOException {
+            File file = oldValues[METADATA_INDEX];
+            CacheHeader header;
+            long bodyOffset;
+            FileInputStream in = new FileInputStream(file);
+            try {
+                header = CacheHeader.readHeader(in);
+                bodyOffset = in.getChannel().position();
+            } finally {
+                in.close();
+            }
+            if (file.length() - bodyOffset != header.storedSize) {
+                return false;
+            }
+            header.flags |= FLAG_BODY_OFFSET;
+            header.bodyOffset = bodyOffset;
+            OutputStream os = new FileOutputStream(newValues[METADATA_INDEX]);
+            try {
+                header.write(os);
+            } finally {
+                os.close();
+            }
+            return file.renameTo(newValues[BODY_INDEX]);
+        }
+    };
+
+    /**
+     * Selects the entries to invalidate in {@link #invalidate(KeyFilter, boolean)}.
+     */
+    public interface KeyFilter {
+        /** Returns whether the entry stored for {@code key} should be invalidated. */
+        boolean matches(String key);
+    }
+
+    /**
+     * Invalidates an entry in the cache. Only its header is rewritten, the body is kept.
      * @param key Cache key
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        checkNotClosed();
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        String hashkey = KeyHashUtils.hash(key);
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            synchronized (lockFor(hashkey)) {
+                invalidateLocked(hashkey, null, fullExpire);
+            }
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Invalidates every entry whose key starts with {@code prefix}, as when the user logs out
+     * and the responses of their account's endpoints no longer apply.
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @return the number of entries invalidated
+     */
+    public int invalidatePrefix(final String prefix, boolean fullExpire) {
+        return invalidate(new KeyFilter() {
+            @Override
+            public boolean matches(String key) {
+                return key.startsWith(prefix);
+            }
+        }, fullExpire);
+    }
+
+    /**
+     * Invalidates every entry whose key matches {@code filter}. Reads the header of each
+     * entry and rewrites those of the matching ones; no body is read or written, and the
+     * entries keep their place for eviction. This includes disk access so this should not
+     * be executed on the main/UI thread.
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @return the number of entries invalidated
+     */
+    public int invalidate(KeyFilter filter, boolean fullExpire) {
+        int invalidated = 0;
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            for (String hashkey : mDiskLruCache.getKeys()) {
+                if (BlobReferences.isBlobKey(hashkey)) {
+                    continue;
+                }
+                synchronized (lockFor(hashkey)) {
+                    if (invalidateLocked(hashkey, filter, fullExpire)) {
+                        invalidated++;
+                    }
+                }
+            }
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+        return invalidated;
+    }
+
+    /**
+     * Rewrites the header of the entry stored as {@code hashkey} with its ttls expired, if
+     * there is one and its key matches {@code filter}.
+     * @param filter the entries to invalidate, or null for any
+     * @return whether the entry was invalidated
+     */
+    private boolean invalidateLocked(String hashkey, KeyFilter filter, boolean fullExpire) {
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            // Peek so that invalidating an entry, or scanning past it, doesn't count as a use.
+            snapshot = mDiskLruCache.peek(hashkey);
+            if (null == snapshot) {
+                return false;
+            }
+            CacheHeader header = CacheHeader.readHeader(snapshot.getInputStream(METADATA_INDEX));
+            if (filter != null && (header.key == null || !filter.matches(header.key))) {
+                return false;
+            }
+            header.softTtl = 0;
             if (fullExpire) {
-                entry.ttl = 0;
+                header.ttl = 0;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            header.write(bytes);
+            byte[] value = bytes.toByteArray();
+            // Unlike an edit, this keeps the entry's place for eviction and its sequence
+            // number, so that body loaders from getMetadata() still work. False if the entry
+            // changed since it was read, by another process sharing the files.
+            if (!mDiskLruCache.replaceValue(hashkey, snapshot.getSequenceNumber(), METADATA_INDEX,
+                    value, expiresAt(header.toCacheEntry((byte[]) null)))) {
+                return false;
+            }
+            mStats.recordWrite(value.length);
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to invalidate entry %s", hashkey);
+        } finally {
+            if (null != snapshot) {
+                snapshot.close();
             }
-            put(key, entry);
         }
+        return false;
     }
 
     /**
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
-        checkNotClosed();
-        String hashkey = MD5Utils.getMD5(key.getBytes());
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            mStats.recordHit(System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    /** Looks up an entry without counting it as a get in {@link #getStats()}. */
+    private Entry getEntry(String key) {
+        String hashkey = KeyHashUtils.hash(key);
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            Entry entry = getLocked(key, hashkey);
+            if (entry == null && mLegacyEntryCount.get() > 0) {
+                entry = migrateLegacyEntry(key, hashkey);
+            }
+            return entry;
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
 
-        InputStream is = null;
+    private Entry getLocked(String key, String hashkey) {
+        DiskLruCache.Snapshot snapshot = null;
         try {
-            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(hashkey);
+            snapshot = mDiskLruCache.get(hashkey);
             if(null != snapshot) {
-                is = snapshot.getInputStream(DEFAULT_DISK_VALUE_INDEX);
-                CacheHeader header = CacheHeader.readHeader(is);
-                byte[] data = streamToBytes(is, (int) header.size);
-                return header.toCacheEntry(data);
+                CacheHeader header = CacheHeader.readHeader(snapshot.getInputStream(METADATA_INDEX));
+                Entry entry = header.toCacheEntry((byte[]) null);
+                return readBodyLocked(header, snapshot.getInputStream(BODY_INDEX), entry)
+                        ? entry : null;
             }
         } catch (IOException e) {
             VolleyLog.d("Failed to get entry for key %s", key);
@@ -142,41 +536,217 @@ public class DiskLruBasedCache implements Cache {
         } catch (Exception e) {
             e.printStackTrace();
         }finally {
+            if(null != snapshot) {
+                snapshot.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the body described by {@code header} into {@code entry}, from {@code is} or from
+     * the blob it is shared in.
+     * @return false if the body is in a blob that was evicted
+     */
+    private boolean readBodyLocked(CacheHeader header, InputStream is, Entry entry)
+            throws IOException {
+        DiskLruCache.Snapshot blob = null;
+        try {
+            if ((header.flags & FLAG_SHARED_BODY) != 0) {
+                blob = mDiskLruCache.get(header.bodyKey);
+                if (null == blob) {
+                    // Evicted; a response put under the key replaces the entry.
+                    return false;
+                }
+                is = blob.getInputStream(BODY_INDEX);
+            } else if ((header.flags & FLAG_BODY_OFFSET) != 0) {
+                skipFully(is, header.bodyOffset);
+            }
+            if ((header.flags & FLAG_DEFLATED) != 0) {
+                byte[] compressed = streamToBytes(is, (int) header.storedSize);
+                mStats.recordRead(compressed.length);
+                entry.data = BodyCompressor.inflate(compressed, (int) header.size);
+            } else if (header.size >= mMinMappedBodyBytes && is instanceof FileInputStream) {
+                entry.dataBuffer = mapBody((FileInputStream) is, header.size);
+                mStats.recordRead(header.size);
+            } else {
+                entry.data = streamToBytes(is, (int) header.size);
+                mStats.recordRead(header.size);
+            }
+            return true;
+        } finally {
+            if (null != blob) {
+                blob.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the metadata of the entry with the specified key if it exists, null otherwise.
+     * Only the header is read; the body is read again through {@link #get(String)} if needed.
+     */
+    @Override
+    public Entry getMetadata(String key) {
+        long start = System.nanoTime();
+        Entry entry = getMetadataEntry(key);
+        if (entry != null) {
+            mStats.recordHit(System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    private Entry getMetadataEntry(String key) {
+        String hashkey = KeyHashUtils.hash(key);
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            DiskLruCache.Snapshot snapshot = null;
             try {
-                if(null != is) {
-                    is.close();
+                snapshot = mDiskLruCache.get(hashkey);
+                if (null == snapshot) {
+                    return mLegacyEntryCount.get() > 0 ? migrateLegacyEntry(key, hashkey) : null;
+                }
+                CacheHeader header = CacheHeader.readHeader(snapshot.getInputStream(METADATA_INDEX));
+                Entry entry = header.toCacheEntry((byte[]) null);
+                entry.bodyLoader = new SnapshotBodyLoader(mDiskLruCache, hashkey,
+                        snapshot.getSequenceNumber(), header);
+                entry.dataLength = (int) header.size;
+                return entry;
+            } catch (IOException e) {
+                VolleyLog.d("Failed to get entry for key %s", key);
+                remove(key);
+                return null;
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the body of an entry returned by {@link #getMetadata(String)} straight from the
+     * body file of the snapshot its header was read from, without looking the key up or
+     * decoding the header again. Fails if the entry was replaced or removed since.
+     */
+    private final class SnapshotBodyLoader implements BodyLoader {
+        private final DiskLruCache mCache;
+        private final String mHashkey;
+        private final long mSequenceNumber;
+        private final CacheHeader mHeader;
+
+        SnapshotBodyLoader(DiskLruCache cache, String hashkey, long sequenceNumber,
+                CacheHeader header) {
+            mCache = cache;
+            mHashkey = hashkey;
+            mSequenceNumber = sequenceNumber;
+            mHeader = header;
+        }
+
+        @Override
+        public boolean load(Entry entry) {
+            InputStream is = null;
+            mLifecycleLock.readLock().lock();
+            try {
+                if (mDiskLruCache != mCache || mCache.isClosed()) {
+                    return false;
+                }
+                is = mCache.openValue(mHashkey, mSequenceNumber, BODY_INDEX);
+                return null != is && readBodyLocked(mHeader, is, entry);
+            } catch (IOException e) {
+                VolleyLog.d("Failed to load body of entry %s", mHashkey);
+                return false;
+            } finally {
+                mLifecycleLock.readLock().unlock();
+                if (null != is) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
-            }catch (IOException e) {
-                e.printStackTrace();
             }
         }
-        return null;
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
-        checkNotClosed();
-        String hashkey = MD5Utils.getMD5(key.getBytes());
+    public void put(String key, Entry entry) {
+        long start = System.nanoTime();
+        String hashkey = KeyHashUtils.hash(key);
+        long written;
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            synchronized (lockFor(hashkey)) {
+                written = putLocked(key, hashkey, entry);
+                if (mLegacyEntryCount.get() > 0) {
+                    removeLegacyEntryLocked(key);
+                }
+            }
+            removeOrphanedBlobs();
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+        if (written >= 0) {
+            mStats.recordPut(System.nanoTime() - start, written);
+        }
+    }
 
+    /**
+     * Writes {@code entry} under {@code hashkey}.
+     * @return the number of body bytes written, or -1 if the entry wasn't stored
+     */
+    private long putLocked(String key, String hashkey, Entry entry) {
         OutputStream os = null;
         DiskLruCache.Editor editor = null;
+        String previousBlob = sharedBodyKeyLocked(hashkey);
+        String blobKey = null;
+        boolean committed = false;
         try {
             editor = mDiskLruCache.edit(hashkey);
             if(null != editor) {
-                os = editor.newOutputStream(DEFAULT_DISK_VALUE_INDEX);
-                CacheHeader header = new CacheHeader(hashkey, entry);
-                boolean success = header.writeHeader(os);
-                if (!success) {
-                    os.close();
-                    VolleyLog.d("Failed to write header for key %s", key);
-                    throw new IOException();
+                editor.setExpiresAt(expiresAt(entry));
+                CacheHeader header = new CacheHeader(key, entry);
+                byte[] compressed = null;
+                int threshold = mCompressionThreshold;
+                if (threshold >= 0 && header.size >= threshold
+                        && BodyCompressor.isCompressible(entry.responseHeaders)) {
+                    compressed = BodyCompressor.deflate(entry.getData());
+                    if (compressed != null) {
+                        header.flags |= FLAG_DEFLATED;
+                        header.storedSize = compressed.length;
+                    }
+                }
+                long written = compressed != null ? compressed.length : header.size;
+                int sharedThreshold = mSharedBodyThreshold;
+                if (sharedThreshold >= 0 && header.size >= sharedThreshold) {
+                    byte[] body = compressed != null ? compressed : entry.getData();
+                    blobKey = BlobReferences.blobKey(body);
+                    written = storeBlobLocked(blobKey, hashkey, body);
+                    header.flags |= FLAG_SHARED_BODY;
+                    header.bodyKey = blobKey;
+                }
+                writeHeader(editor, header);
+                os = editor.newOutputStream(BODY_INDEX);
+                // With a blob the body value stays empty.
+                if (blobKey == null) {
+                    if (compressed != null) {
+                        os.write(compressed);
+                    } else {
+                        entry.writeDataTo(os);
+                    }
                 }
-                os.write(entry.data);
                 editor.commit();
+                committed = true;
                 os.close();
+                return written;
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -193,23 +763,224 @@ public class DiskLruBasedCache implements Cache {
             }catch (IOException e) {
                 e.printStackTrace();
             }
+            if (committed && previousBlob != null && !previousBlob.equals(blobKey)) {
+                releaseBlobLocked(previousBlob, hashkey);
+            } else if (!committed && blobKey != null && !blobKey.equals(previousBlob)) {
+                releaseBlobLocked(blobKey, hashkey);
+            }
+        }
+        return -1;
+    }
 
+    /**
+     * Stores {@code body} as the blob {@code blobKey} unless it is already, and records that
+     * the entry named {@code hashkey} points at it.
+     * @return the number of bytes written, 0 if the blob was there already
+     */
+    private long storeBlobLocked(String blobKey, String hashkey, byte[] body)
+            throws IOException {
+        synchronized (blobLockFor(blobKey)) {
+            long written = 0;
+            // Another entry pointing at the blob counts as a use of it.
+            DiskLruCache.Snapshot existing = mDiskLruCache.get(blobKey);
+            if (null != existing) {
+                existing.close();
+            } else {
+                DiskLruCache.Editor editor = mDiskLruCache.edit(blobKey);
+                if (null == editor) {
+                    throw new IOException("Blob " + blobKey + " is being written");
+                }
+                try {
+                    // Blobs have no header, only a body.
+                    editor.newOutputStream(METADATA_INDEX).close();
+                    OutputStream os = editor.newOutputStream(BODY_INDEX);
+                    try {
+                        os.write(body);
+                    } finally {
+                        os.close();
+                    }
+                    editor.commit();
+                    written = body.length;
+                } finally {
+                    editor.abortUnlessCommitted();
+                }
+                // Admission is up to the entries pointing at the blob. Had it to win a
+                // contest of its own, a new blob would lose to any entry that was read
+                // before, and the entry just admitted would point at nothing.
+                mDiskLruCache.admit(blobKey);
+            }
+            mBlobReferences.add(blobKey, hashkey);
+            return written;
+        }
+    }
 
+    /**
+     * Records that the entry named {@code hashkey} no longer points at {@code blobKey}, and
+     * removes the blob if no other entry does.
+     */
+    private void releaseBlobLocked(String blobKey, String hashkey) {
+        synchronized (blobLockFor(blobKey)) {
+            if (mBlobReferences.release(blobKey, hashkey)) {
+                try {
+                    mDiskLruCache.remove(blobKey);
+                } catch (IOException e) {
+                    VolleyLog.e(e, "Failed to remove blob %s", blobKey);
+                }
+            }
         }
     }
 
+    /** Removes the blobs queued by {@link BlobReleaser} that are still unreferenced. */
+    private void removeOrphanedBlobs() {
+        String blobKey;
+        while ((blobKey = mOrphanedBlobs.poll()) != null) {
+            synchronized (blobLockFor(blobKey)) {
+                if (mBlobReferences.isUnreferenced(blobKey)) {
+                    try {
+                        mDiskLruCache.remove(blobKey);
+                    } catch (IOException e) {
+                        VolleyLog.e(e, "Failed to remove blob %s", blobKey);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the blob references of the entries the disk cache evicts or sweeps, and
+     * queues the blobs left unreferenced for removal.
+     */
+    private final class BlobReleaser implements DiskLruCache.EvictionListener {
+        private final BlobReferences mReferences;
+
+        BlobReleaser(BlobReferences references) {
+            mReferences = references;
+        }
+
+        @Override
+        public void onEvicted(String key) {
+            if (BlobReferences.isBlobKey(key)) {
+                return;
+            }
+            String blobKey = mReferences.releaseEntry(key);
+            if (blobKey != null) {
+                mOrphanedBlobs.add(blobKey);
+            }
+        }
+    }
+
+    /**
+     * Returns the blob the entry named {@code hashkey} points at, or null if it has none or
+     * doesn't exist. Reads the header only if some entry may point at a blob.
+     */
+    private String sharedBodyKeyLocked(String hashkey) {
+        if (!mBlobReferences.mayBeReferenced()) {
+            return null;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskLruCache.peek(hashkey);
+            if (null != snapshot) {
+                CacheHeader header = CacheHeader.readHeader(snapshot.getInputStream(METADATA_INDEX));
+                return (header.flags & FLAG_SHARED_BODY) != 0 ? header.bodyKey : null;
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Failed to read header of entry %s", hashkey);
+        } finally {
+            if (null != snapshot) {
+                snapshot.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the blobs pointed at by the entries of {@code cache} on a background thread,
+     * then removes the blobs no entry points at. Stops if the cache is cleared or closed.
+     */
+    private void startBlobScan(final DiskLruCache cache, final BlobReferences references) {
+        Thread scanner = new Thread("Volley-CacheBlobScan") {
+            @Override
+            public void run() {
+                if (scanBlobReferences(cache, references, false)) {
+                    references.markComplete();
+                    scanBlobReferences(cache, references, true);
+                }
+            }
+        };
+        scanner.setDaemon(true);
+        scanner.setPriority(Thread.MIN_PRIORITY);
+        scanner.start();
+    }
+
+    /**
+     * Visits every entry of {@code cache}, one at a time under its lock: records the blobs
+     * the entries point at, or with {@code sweep}, removes the unreferenced blobs.
+     * @return false if the cache was cleared or closed meanwhile
+     */
+    private boolean scanBlobReferences(DiskLruCache cache, BlobReferences references,
+            boolean sweep) {
+        for (String name : cache.getKeys()) {
+            if (BlobReferences.isBlobKey(name) != sweep) {
+                continue;
+            }
+            mLifecycleLock.readLock().lock();
+            try {
+                if (mDiskLruCache != cache || mBlobReferences != references) {
+                    return false;
+                }
+                if (sweep) {
+                    synchronized (blobLockFor(name)) {
+                        if (references.isUnreferenced(name)) {
+                            cache.remove(name);
+                        }
+                    }
+                } else {
+                    synchronized (lockFor(name)) {
+                        String blobKey = sharedBodyKeyLocked(name);
+                        if (blobKey != null) {
+                            references.add(blobKey, name);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                VolleyLog.d("Failed to remove blob %s", name);
+            } finally {
+                mLifecycleLock.readLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of distinct bodies that entries share. */
+    public int getSharedBodyCount() {
+        return mBlobReferences.size();
+    }
+
     /**
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        checkNotClosed();
-        String hashkey = MD5Utils.getMD5(key.getBytes());
+    public void remove(String key) {
+        String hashkey = KeyHashUtils.hash(key);
         boolean deleted = false;
+        mLifecycleLock.readLock().lock();
         try {
-            deleted = mDiskLruCache.remove(hashkey);
+            checkNotClosed();
+            synchronized (lockFor(hashkey)) {
+                String blobKey = sharedBodyKeyLocked(hashkey);
+                deleted = mDiskLruCache.remove(hashkey);
+                if (deleted && blobKey != null) {
+                    releaseBlobLocked(blobKey, hashkey);
+                }
+                if (mLegacyEntryCount.get() > 0) {
+                    deleted |= removeLegacyEntryLocked(key);
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            mLifecycleLock.readLock().unlock();
         }
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s", key);
@@ -217,18 +988,135 @@ public class DiskLruBasedCache implements Cache {
     }
 
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * Clears the cache. The root directory is renamed out of the way and an empty cache is
+     * opened in its place at once; the cached files are deleted on a background thread, so
+     * that other cache operations don't wait for them.
      */
     @Override
-    public synchronized void clear() {
-        checkNotClosed();
+    public void clear() {
+        mLifecycleLock.writeLock().lock();
+        try {
+            checkNotClosed();
+            try {
+                mDiskLruCache.discard();
+            } catch (IOException e) {
+                VolleyLog.e(e, "Failed to discard %s", mRootDirectory.getAbsolutePath());
+            }
+            mStats.recordEvictions(mDiskLruCache.getEvictionCount());
+            File tombstone = new File(mRootDirectory.getAbsoluteFile().getParentFile(),
+                    mRootDirectory.getName() + TOMBSTONE_INFIX + System.nanoTime());
+            if (mRootDirectory.renameTo(tombstone)) {
+                deleteInBackground(tombstone);
+            } else {
+                VolleyLog.d("Unable to rename %s, deleting the cache in place",
+                        mRootDirectory.getAbsolutePath());
+                deleteRecursively(mRootDirectory);
+            }
+            openDiskLruCache();
+        } finally {
+            mLifecycleLock.writeLock().unlock();
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /** Deletes {@code directory} and everything in it on a low priority background thread. */
+    private static void deleteInBackground(final File directory) {
+        Thread deleter = new Thread("Volley-CacheDelete") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                if (!deleteRecursively(directory)) {
+                    VolleyLog.d("Failed to delete %s", directory.getAbsolutePath());
+                }
+            }
+        };
+        deleter.setDaemon(true);
+        deleter.start();
+    }
+
+    /** Deletes {@code file}, and everything in it if it is a directory. */
+    private static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * Writes {@code header} as the metadata value of the entry being edited.
+     * @return the number of bytes written
+     */
+    private static long writeHeader(DiskLruCache.Editor editor, CacheHeader header)
+            throws IOException {
+        OutputStream os = editor.newOutputStream(METADATA_INDEX);
         try {
-            mDiskLruCache.delete();
+            return header.write(os);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Moves the entry for {@code key} from its legacy name to {@code hashkey}, and returns
+     * it; null if there is none.
+     */
+    private Entry migrateLegacyEntry(String key, String hashkey) {
+        synchronized (lockFor(hashkey)) {
+            // A put or remove of the key in the meantime has already deleted the legacy entry.
+            Entry entry = getLocked(key, legacyHashKey(key));
+            if (entry != null) {
+                putLocked(key, hashkey, entry);
+                removeLegacyEntryLocked(key);
+            }
+            return entry;
+        }
+    }
+
+    /** Deletes the entry stored under the legacy name of {@code key}, if there is one. */
+    private boolean removeLegacyEntryLocked(String key) {
+        try {
+            if (mDiskLruCache.remove(legacyHashKey(key))) {
+                mLegacyEntryCount.decrementAndGet();
+                return true;
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        initialize();
-        VolleyLog.d("Cache cleared.");
+        return false;
+    }
+
+    /**
+     * Returns the name entries were stored under before {@link KeyHashUtils}: the MD5 of the
+     * key in the platform charset, with each byte written as its low hex digit twice. That is
+     * what {@link MD5Utils#getMD5(byte[])} produced before its nibble shift was fixed.
+     */
+    private static String legacyHashKey(String key) {
+        byte[] digest = MD5Utils.MD5Encode(key.getBytes());
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            char c = Character.forDigit(digest[i] & 0x0f, 16);
+            chars[i * 2] = c;
+            chars[i * 2 + 1] = c;
+        }
+        return new String(chars);
+    }
+
+    /** Returns the lock that serializes changes to the entry stored as {@code hashkey}. */
+    private Object lockFor(String hashkey) {
+        int hash = hashkey.hashCode();
+        // Spread the high bits, the low ones of similar keys tend to collide.
+        hash ^= (hash >>> 16);
+        return mKeyLocks[(hash & 0x7fffffff) % mKeyLocks.length];
+    }
+
+    /** Returns the lock that serializes changes to the blob named {@code blobKey}. */
+    private Object blobLockFor(String blobKey) {
+        int hash = blobKey.hashCode();
+        hash ^= (hash >>> 16);
+        return mBlobLocks[(hash & 0x7fffffff) % mBlobLocks.length];
     }
 
     /** Check whether cache is closed or not. */
@@ -238,15 +1126,69 @@ public class DiskLruBasedCache implements Cache {
         }
     }
 
+    /**
+     * Returns when {@code entry} stops being of any use, or 0 if it can't tell: once its
+     * ttl has passed, an entry with no validators can't be revalidated, and is only served
+     * to requests that accept stale responses, for up to {@link Cache#STALE_RETENTION_MS}.
+     */
+    private static long expiresAt(Entry entry) {
+        if (entry.etag != null || entry.lastModified != 0) {
+            return 0;
+        }
+        long ttl = Math.max(entry.ttl, 0);
+        return ttl > Long.MAX_VALUE - STALE_RETENTION_MS ? 0 : ttl + STALE_RETENTION_MS;
+    }
+
+    /** Returns the number of expired entries removed, by eviction or by the sweeper. */
+    public long getExpiredEntryCount() {
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            return mDiskLruCache.getExpiredEntryCount();
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the bytes reclaimed by removing expired entries. */
+    public long getExpiredByteCount() {
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            return mDiskLruCache.getExpiredByteCount();
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
     @Override
-    public synchronized long size() {
-        checkNotClosed();
-        return mDiskLruCache.size();
+    public long size() {
+        mLifecycleLock.readLock().lock();
+        try {
+            checkNotClosed();
+            return mDiskLruCache.size();
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        mLifecycleLock.readLock().lock();
+        try {
+            CacheStats stats = mStats.snapshot();
+            if (null != mDiskLruCache && !mDiskLruCache.isClosed()) {
+                stats = stats.plusEvictions(mDiskLruCache.getEvictionCount());
+            }
+            return stats;
+        } finally {
+            mLifecycleLock.readLock().unlock();
+        }
     }
 
     /**
@@ -254,13 +1196,17 @@ public class DiskLruBasedCache implements Cache {
      * disk access so this should not be executed on the main/UI thread.
      */
     @Override
-    public synchronized void flush() {
-        checkNotClosed();
+    public void flush() {
+        mLifecycleLock.readLock().lock();
         try {
-            mDiskLruCache.flush();
+            checkNotClosed();
+            // Also saves the index, so that the next start need not replay the journal.
+            mDiskLruCache.checkpoint();
             VolleyLog.d("Cache flushed.");
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            mLifecycleLock.readLock().unlock();
         }
     }
 
@@ -269,16 +1215,45 @@ public class DiskLruBasedCache implements Cache {
      * disk access so this should not be executed on the main/UI thread.
      */
     @Override
-    public synchronized void close() {
-        if(null == mDiskLruCache || mDiskLruCache.isClosed()) {
-            return;
-        }
+    public void close() {
+        mLifecycleLock.writeLock().lock();
         try {
+            if(null == mDiskLruCache || mDiskLruCache.isClosed()) {
+                return;
+            }
             mDiskLruCache.close();
+            mStats.recordEvictions(mDiskLruCache.getEvictionCount());
             mDiskLruCache = null;
             VolleyLog.d("Cache flushed.");
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            mLifecycleLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maps the next {@code length} bytes of {@code in} read-only. The mapping stays valid
+     * after the stream is closed and after the file is deleted or replaced.
+     */
+    private static ByteBuffer mapBody(FileInputStream in, long length) throws IOException {
+        FileChannel channel = in.getChannel();
+        long position = channel.position();
+        if (position + length > channel.size()) {
+            throw new IOException("Expected " + length + " bytes, file has "
+                    + (channel.size() - position));
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /** Skips exactly {@code count} bytes of {@code in}. */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
         }
     }
 
@@ -306,6 +1281,18 @@ public class DiskLruBasedCache implements Cache {
         /** The size of the data identified by this CacheHeader. */
         public long size;
 
+        /** The number of bytes the data takes in the file; less than size if deflated. */
+        public long storedSize;
+
+        /** How the data is stored, a combination of FLAG_ values. */
+        public int flags;
+
+        /** Name of the blob holding the data, if flags include FLAG_SHARED_BODY. */
+        public String bodyKey;
+
+        /** Bytes before the data in its file, if flags include FLAG_BODY_OFFSET. */
+        public long bodyOffset;
+
         /** The key that identifies the cache entry. */
         public String key;
 
@@ -336,7 +1323,8 @@ public class DiskLruBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.getDataLength();
+            this.storedSize = size;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.lastModified = entry.lastModified;
@@ -351,13 +1339,65 @@ public class DiskLruBasedCache implements Cache {
          * @throws IOException
          */
         public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
-            int magic = readInt(is);
+            HeaderBuffer buffer = HeaderBuffer.get();
+            buffer.readFully(is, 8);
+            int magic = buffer.getInt();
+            if (magic == LEGACY_CACHE_MAGIC) {
+                return readLegacyHeader(buffer.getInt(), is);
+            }
             if (magic != CACHE_MAGIC) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
-            entry.size = readLong(is);
+            int length = buffer.getInt();
+            if (length < 0 || length > MAX_HEADER_BYTES) {
+                throw new IOException("Invalid header length " + length);
+            }
+            buffer.readFully(is, length);
+
+            CacheHeader entry = new CacheHeader();
+            entry.size = buffer.getLong();
+            entry.key = buffer.getString();
+            entry.etag = buffer.getString();
+            entry.serverDate = buffer.getLong();
+            entry.lastModified = buffer.getLong();
+            entry.ttl = buffer.getLong();
+            entry.softTtl = buffer.getLong();
+            int headerCount = buffer.getInt();
+            if (headerCount == 0) {
+                entry.responseHeaders = Headers.EMPTY;
+            } else {
+                Headers.Builder headers = new Headers.Builder(headerCount);
+                for (int i = 0; i < headerCount; i++) {
+                    headers.add(buffer.getString(), buffer.getString());
+                }
+                entry.responseHeaders = headers.build();
+            }
+            // Added after the fields above; headers written before have neither.
+            if (buffer.remaining() >= 12) {
+                entry.flags = buffer.getInt();
+                entry.storedSize = buffer.getLong();
+                if ((entry.flags & FLAG_SHARED_BODY) != 0) {
+                    entry.bodyKey = buffer.getString();
+                }
+                if ((entry.flags & FLAG_BODY_OFFSET) != 0) {
+                    entry.bodyOffset = buffer.getLong();
+                }
+            } else {
+                entry.storedSize = entry.size;
+            }
+            return entry;
+        }
+
+        /**
+         * Reads the rest of a header in the legacy format, whose fields follow the magic
+         * number without a length prefix.
+         * @param sizeLow The low half of the data size, already read with the magic number.
+         */
+        private static CacheHeader readLegacyHeader(int sizeLow, InputStream is)
+                throws IOException {
+            CacheHeader entry = new CacheHeader();
+            entry.size = (sizeLow & 0xFFFFFFFFL) | ((long) readInt(is) << 32);
             entry.key = readString(is);
             entry.etag = readString(is);
             if (entry.etag.equals("")) {
@@ -368,7 +1408,7 @@ public class DiskLruBasedCache implements Cache {
             entry.ttl = readLong(is);
             entry.softTtl = readLong(is);
             entry.responseHeaders = readStringStringMap(is);
-
+            entry.storedSize = entry.size;
             return entry;
         }
 
@@ -387,22 +1427,23 @@ public class DiskLruBasedCache implements Cache {
             return e;
         }
 
+        /**
+         * Creates a cache entry whose data is only held by {@code dataBuffer}.
+         */
+        public Entry toCacheEntry(ByteBuffer dataBuffer) {
+            Entry e = toCacheEntry((byte[]) null);
+            e.dataBuffer = dataBuffer;
+            return e;
+        }
+
 
         /**
-         * Writes the contents of this CacheHeader to the specified OutputStream.
+         * Writes the contents of this CacheHeader to the specified OutputStream in a single
+         * write, prefixed with its length so that it can be read back in one go.
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeLong(os, size);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
-                os.flush();
+                write(os);
                 return true;
             } catch (IOException e) {
                 VolleyLog.d("%s", e.toString());
@@ -410,6 +1451,200 @@ public class DiskLruBasedCache implements Cache {
             }
         }
 
+        /**
+         * Writes the header like {@link #writeHeader(OutputStream)}, but throws on failure.
+         * @return the number of bytes written
+         */
+        int write(OutputStream os) throws IOException {
+            HeaderBuffer buffer = HeaderBuffer.get();
+            buffer.reset();
+            buffer.putInt(CACHE_MAGIC);
+            // Length of the rest of the header, filled in below.
+            buffer.putInt(0);
+            buffer.putLong(size);
+            buffer.putString(key);
+            buffer.putString(etag);
+            buffer.putLong(serverDate);
+            buffer.putLong(lastModified);
+            buffer.putLong(ttl);
+            buffer.putLong(softTtl);
+            if (responseHeaders instanceof Headers) {
+                Headers headers = (Headers) responseHeaders;
+                buffer.putInt(headers.size());
+                for (int i = 0; i < headers.size(); i++) {
+                    buffer.putString(headers.name(i));
+                    buffer.putString(headers.value(i));
+                }
+            } else if (responseHeaders != null) {
+                buffer.putInt(responseHeaders.size());
+                for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                    buffer.putString(header.getKey());
+                    buffer.putString(header.getValue());
+                }
+            } else {
+                buffer.putInt(0);
+            }
+            buffer.putInt(flags);
+            buffer.putLong(storedSize);
+            if ((flags & FLAG_SHARED_BODY) != 0) {
+                buffer.putString(bodyKey);
+            }
+            if ((flags & FLAG_BODY_OFFSET) != 0) {
+                buffer.putLong(bodyOffset);
+            }
+            buffer.putIntAt(4, buffer.position() - 8);
+            buffer.writeTo(os);
+            return buffer.position();
+        }
+
+    }
+
+    /**
+     * A growable little-endian byte buffer, one per thread, that cache headers are encoded
+     * into and decoded from so that each takes a single read or write on the file.
+     */
+    private static final class HeaderBuffer {
+        /** Buffers that grew beyond this size are not kept for reuse. */
+        private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+        private static final ThreadLocal<HeaderBuffer> sBuffers = new ThreadLocal<HeaderBuffer>() {
+            @Override
+            protected HeaderBuffer initialValue() {
+                return new HeaderBuffer();
+            }
+        };
+
+        private byte[] mBytes = new byte[1024];
+        private int mPosition;
+        private int mLimit;
+
+        static HeaderBuffer get() {
+            HeaderBuffer buffer = sBuffers.get();
+            if (buffer.mBytes.length > MAX_RETAINED_BYTES) {
+                buffer.mBytes = new byte[1024];
+            }
+            buffer.reset();
+            return buffer;
+        }
+
+        void reset() {
+            mPosition = 0;
+            mLimit = 0;
+        }
+
+        int position() {
+            return mPosition;
+        }
+
+        /** Returns the number of bytes left to read. */
+        int remaining() {
+            return mLimit - mPosition;
+        }
+
+        /** Replaces the contents of the buffer with the next {@code length} bytes of {@code is}. */
+        void readFully(InputStream is, int length) throws IOException {
+            ensureCapacity(length);
+            int pos = 0;
+            int count;
+            while (pos < length && (count = is.read(mBytes, pos, length - pos)) != -1) {
+                pos += count;
+            }
+            if (pos != length) {
+                throw new EOFException();
+            }
+            mPosition = 0;
+            mLimit = length;
+        }
+
+        void writeTo(OutputStream os) throws IOException {
+            os.write(mBytes, 0, mPosition);
+        }
+
+        void putInt(int n) {
+            ensureCapacity(mPosition + 4);
+            putIntAt(mPosition, n);
+            mPosition += 4;
+        }
+
+        void putIntAt(int index, int n) {
+            mBytes[index] = (byte) n;
+            mBytes[index + 1] = (byte) (n >>> 8);
+            mBytes[index + 2] = (byte) (n >>> 16);
+            mBytes[index + 3] = (byte) (n >>> 24);
+        }
+
+        void putLong(long n) {
+            putInt((int) n);
+            putInt((int) (n >>> 32));
+        }
+
+        /** Writes a length-prefixed UTF-8 string; null is written as length -1. */
+        void putString(String s) throws IOException {
+            if (s == null) {
+                putInt(-1);
+                return;
+            }
+            int length = s.length();
+            ensureCapacity(mPosition + 4 + length);
+            int start = mPosition + 4;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // Not ASCII, let the charset encoder handle it.
+                    byte[] b = s.getBytes("UTF-8");
+                    putInt(b.length);
+                    ensureCapacity(mPosition + b.length);
+                    System.arraycopy(b, 0, mBytes, mPosition, b.length);
+                    mPosition += b.length;
+                    return;
+                }
+                mBytes[start + i] = (byte) c;
+            }
+            putInt(length);
+            mPosition += length;
+        }
+
+        int getInt() throws IOException {
+            checkRemaining(4);
+            int n = (mBytes[mPosition] & 0xff)
+                    | (mBytes[mPosition + 1] & 0xff) << 8
+                    | (mBytes[mPosition + 2] & 0xff) << 16
+                    | (mBytes[mPosition + 3] & 0xff) << 24;
+            mPosition += 4;
+            return n;
+        }
+
+        long getLong() throws IOException {
+            return (getInt() & 0xFFFFFFFFL) | ((long) getInt() << 32);
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if (length == -1) {
+                return null;
+            }
+            if (length < 0) {
+                throw new IOException("Invalid string length " + length);
+            }
+            checkRemaining(length);
+            String s = new String(mBytes, mPosition, length, "UTF-8");
+            mPosition += length;
+            return s;
+        }
+
+        private void checkRemaining(int count) throws IOException {
+            if (mLimit - mPosition < count) {
+                throw new EOFException();
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mBytes.length) {
+                byte[] grown = new byte[Math.max(capacity, mBytes.length * 2)];
+                System.arraycopy(mBytes, 0, grown, 0, mPosition);
+                mBytes = grown;
+            }
+        }
     }
 
     /**
@@ -424,13 +1659,6 @@ public class DiskLruBasedCache implements Cache {
         return b;
     }
 
-    static void writeInt(OutputStream os, int n) throws IOException {
-        os.write((n >> 0) & 0xff);
-        os.write((n >> 8) & 0xff);
-        os.write((n >> 16) & 0xff);
-        os.write((n >> 24) & 0xff);
-    }
-
     static int readInt(InputStream is) throws IOException {
         int n = 0;
         n |= (read(is) << 0);
@@ -440,17 +1668,6 @@ public class DiskLruBasedCache implements Cache {
         return n;
     }
 
-    static void writeLong(OutputStream os, long n) throws IOException {
-        os.write((byte)(n >>> 0));
-        os.write((byte)(n >>> 8));
-        os.write((byte)(n >>> 16));
-        os.write((byte)(n >>> 24));
-        os.write((byte)(n >>> 32));
-        os.write((byte)(n >>> 40));
-        os.write((byte)(n >>> 48));
-        os.write((byte)(n >>> 56));
-    }
-
     static long readLong(InputStream is) throws IOException {
         long n = 0;
         n |= ((read(is) & 0xFFL) << 0);
@@ -464,40 +1681,23 @@ public class DiskLruBasedCache implements Cache {
         return n;
     }
 
-    static void writeString(OutputStream os, String s) throws IOException {
-        byte[] b = s.getBytes("UTF-8");
-        writeLong(os, b.length);
-        os.write(b, 0, b.length);
-    }
-
     static String readString(InputStream is) throws IOException {
         int n = (int) readLong(is);
         byte[] b = streamToBytes(is, n);
         return new String(b, "UTF-8");
     }
 
-    static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
-        if (map != null) {
-            writeInt(os, map.size());
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                writeString(os, entry.getKey());
-                writeString(os, entry.getValue());
-            }
-        } else {
-            writeInt(os, 0);
-        }
-    }
-
-    static Map<String, String> readStringStringMap(InputStream is) throws IOException {
+    static Headers readStringStringMap(InputStream is) throws IOException {
         int size = readInt(is);
-        Map<String, String> result = (size == 0)
-            ? Collections.<String, String>emptyMap()
-            : new HashMap<String, String>(size);
+        if (size == 0) {
+            return Headers.EMPTY;
+        }
+        Headers.Builder result = new Headers.Builder(size);
         for (int i = 0; i < size; i++) {
-            String key = readString(is).intern();
-            String value = readString(is).intern();
-            result.put(key, value);
+            String key = readString(is);
+            String value = readString(is);
+            result.add(key, value);
         }
-        return result;
+        return result.build();
     }
 }
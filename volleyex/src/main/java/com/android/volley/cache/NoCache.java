@@ -22,6 +22,9 @@ import com.android.volley.cache.Cache;
  * A cache that doesn't.
  */
 public class NoCache implements Cache {
+    /** Counts the lookups, every one a miss. */
+    private final StatsCounter mStats = new StatsCounter();
+
     @Override
     public void clear() {
     }
@@ -41,9 +44,21 @@ public class NoCache implements Cache {
 
     @Override
     public Entry get(String key) {
+        mStats.recordMiss(-1);
+        return null;
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        mStats.recordMiss(-1);
         return null;
     }
 
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
     @Override
     public void put(String key, Entry entry) {
     }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.cache;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A cache split into partitions with budgets of their own, so that one kind of entry, such as
+ * images, can't push out every entry of another, such as API responses. A {@link Partitioner}
+ * picks the partition of each entry; each partition evicts and keeps stats on its own.
+ *
+ * <p>The budgets always add up to what they did at first, but move between partitions with
+ * use: every {@link #REBALANCE_INTERVAL} lookups, a share of the budget of the partition with
+ * the fewest hits per byte goes to the full partition with the most. No partition is left with
+ * less than {@link #MIN_BUDGET_SHARE} of its first budget.</p>
+ */
+public class PartitionedCache implements Cache {
+
+    /** Number of lookups between two budget rebalances. */
+    static final int REBALANCE_INTERVAL = 1000;
+
+    /** Share of the total budget moved by one rebalance. */
+    static final double REBALANCE_STEP = 0.05;
+
+    /** Share of its first budget that a partition keeps, however little it is used. */
+    static final double MIN_BUDGET_SHARE = 0.25;
+
+    /** A partition this full of its budget could use more. */
+    private static final double FULL_RATIO = 0.9;
+
+    /** Budget only moves if the receiver gets this many times the hits per byte of the giver. */
+    private static final double MIN_GAIN = 1.25;
+
+    /** Picks the partition of an entry. */
+    public interface Partitioner {
+        /**
+         * Returns the index of the partition {@code key} belongs to, or -1 if it can't tell.
+         * @param entry the entry being stored, or null for lookups and removals, which look in
+         *     every partition when -1 is returned; entries stored with -1 go in the last one
+         */
+        public int partitionFor(String key, Entry entry);
+    }
+
+    /**
+     * Puts the entries whose key matches the i-th pattern in partition i, and all others in the
+     * partition after the last pattern. Cache keys are usually the request URL.
+     */
+    public static class KeyPatternPartitioner implements Partitioner {
+        private final Pattern[] mPatterns;
+
+        public KeyPatternPartitioner(Pattern... patterns) {
+            mPatterns = patterns.clone();
+        }
+
+        @Override
+        public int partitionFor(String key, Entry entry) {
+            for (int i = 0; i < mPatterns.length; i++) {
+                if (mPatterns[i].matcher(key).find()) {
+                    return i;
+                }
+            }
+            return mPatterns.length;
+        }
+    }
+
+    /**
+     * Puts the entries whose Content-Type starts with the i-th prefix, such as "image/", in
+     * partition i, and all others in the partition after the last prefix. The type is only
+     * known once an entry is stored, so lookups look in every partition.
+     */
+    public static class ContentTypePartitioner implements Partitioner {
+        private final String[] mPrefixes;
+
+        public ContentTypePartitioner(String... prefixes) {
+            mPrefixes = new String[prefixes.length];
+            for (int i = 0; i < prefixes.length; i++) {
+                mPrefixes[i] = prefixes[i].toLowerCase(Locale.US);
+            }
+        }
+
+        @Override
+        public int partitionFor(String key, Entry entry) {
+            if (entry == null) {
+                return -1;
+            }
+            String contentType = entry.responseHeaders == null
+                    ? null : entry.responseHeaders.get("Content-Type");
+            if (contentType != null) {
+                contentType = contentType.toLowerCase(Locale.US);
+                for (int i = 0; i < mPrefixes.length; i++) {
+                    if (contentType.startsWith(mPrefixes[i])) {
+                        return i;
+                    }
+                }
+            }
+            return mPrefixes.length;
+        }
+    }
+
+    private final Partitioner mPartitioner;
+
+    private final ResizableCache[] mPartitions;
+
+    /** Smallest budget of each partition. */
+    private final long[] mMinBudgets;
+
+    /** Sum of the budgets. */
+    private final long mTotalBudget;
+
+    /** Stats of each partition at the last rebalance. Guarded by itself. */
+    private final CacheStats[] mRebalanceStats;
+
+    private final AtomicInteger mLookupCount = new AtomicInteger();
+
+    /** Lookups and puts as callers see them; storage counts come from the partitions. */
+    private final StatsCounter mStats = new StatsCounter();
+
+    /**
+     * @param partitioner picks the partition of each entry
+     * @param partitions the partitions, each in a directory of its own and sized to its
+     *     first budget
+     */
+    public PartitionedCache(Partitioner partitioner, ResizableCache... partitions) {
+        if (partitions.length == 0) {
+            throw new IllegalArgumentException("No partitions");
+        }
+        mPartitioner = partitioner;
+        mPartitions = partitions.clone();
+        mMinBudgets = new long[partitions.length];
+        mRebalanceStats = new CacheStats[partitions.length];
+        long total = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            long budget = partitions[i].getMaxSize();
+            mMinBudgets[i] = (long) (budget * MIN_BUDGET_SHARE);
+            mRebalanceStats[i] = CacheStats.EMPTY;
+            total += budget;
+        }
+        mTotalBudget = total;
+    }
+
+    /** Returns the number of partitions. */
+    public int getPartitionCount() {
+        return mPartitions.length;
+    }
+
+    /** Returns partition {@code index}, to read its stats or its current budget. */
+    public ResizableCache getPartition(int index) {
+        return mPartitions[index];
+    }
+
+    @Override
+    public void initialize() {
+        for (Cache partition : mPartitions) {
+            partition.initialize();
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        return lookup(key, false);
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        return lookup(key, true);
+    }
+
+    private Entry lookup(String key, boolean metadataOnly) {
+        long start = System.nanoTime();
+        Entry entry = null;
+        int index = mPartitioner.partitionFor(key, null);
+        if (index >= 0) {
+            entry = lookup(mPartitions[index], key, metadataOnly);
+        } else {
+            for (Cache partition : mPartitions) {
+                entry = lookup(partition, key, metadataOnly);
+                if (entry != null) {
+                    break;
+                }
+            }
+        }
+        if (entry != null) {
+            mStats.recordHit(System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        if (mLookupCount.incrementAndGet() % REBALANCE_INTERVAL == 0) {
+            rebalance();
+        }
+        return entry;
+    }
+
+    private static Entry lookup(Cache partition, String key, boolean metadataOnly) {
+        return metadataOnly ? partition.getMetadata(key) : partition.get(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long start = System.nanoTime();
+        int index = mPartitioner.partitionFor(key, entry);
+        if (index < 0) {
+            index = mPartitions.length - 1;
+        }
+        mPartitions[index].put(key, entry);
+        if (mPartitioner.partitionFor(key, null) < 0) {
+            // The key may be stored in another partition, from when it was of another kind.
+            for (int i = 0; i < mPartitions.length; i++) {
+                if (i != index) {
+                    mPartitions[i].remove(key);
+                }
+            }
+        }
+        mStats.recordPut(System.nanoTime() - start, 0);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        int index = mPartitioner.partitionFor(key, null);
+        if (index >= 0) {
+            mPartitions[index].invalidate(key, fullExpire);
+            return;
+        }
+        for (Cache partition : mPartitions) {
+            partition.invalidate(key, fullExpire);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        int index = mPartitioner.partitionFor(key, null);
+        if (index >= 0) {
+            mPartitions[index].remove(key);
+            return;
+        }
+        for (Cache partition : mPartitions) {
+            partition.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Cache partition : mPartitions) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Cache partition : mPartitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void flush() {
+        for (Cache partition : mPartitions) {
+            partition.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Cache partition : mPartitions) {
+            partition.close();
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        CacheStats stats = mStats.snapshot();
+        for (Cache partition : mPartitions) {
+            stats = stats.plusStorage(partition.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Moves {@link #REBALANCE_STEP} of the total budget from the partition that got the fewest
+     * hits per byte of budget since the last rebalance to the one that got the most, if that
+     * one is full and gets clearly more.
+     */
+    private void rebalance() {
+        synchronized (mRebalanceStats) {
+            int giver = -1;
+            int receiver = -1;
+            double giverDensity = Double.MAX_VALUE;
+            double receiverDensity = -1;
+            for (int i = 0; i < mPartitions.length; i++) {
+                ResizableCache partition = mPartitions[i];
+                CacheStats stats = partition.getStats();
+                long hits = stats.hitCount() - mRebalanceStats[i].hitCount();
+                mRebalanceStats[i] = stats;
+                long budget = partition.getMaxSize();
+                double density = (double) hits / Math.max(budget, 1);
+                if (density > receiverDensity && partition.size() >= budget * FULL_RATIO) {
+                    receiver = i;
+                    receiverDensity = density;
+                }
+                if (density < giverDensity && budget > mMinBudgets[i]) {
+                    giver = i;
+                    giverDensity = density;
+                }
+            }
+            if (giver < 0 || receiver < 0 || giver == receiver
+                    || receiverDensity <= giverDensity * MIN_GAIN) {
+                return;
+            }
+            long giverBudget = mPartitions[giver].getMaxSize();
+            long step = Math.min((long) (mTotalBudget * REBALANCE_STEP),
+                    giverBudget - mMinBudgets[giver]);
+            mPartitions[giver].setMaxSize(giverBudget - step);
+            mPartitions[receiver].setMaxSize(mPartitions[receiver].getMaxSize() + step);
+        }
+    }
+}
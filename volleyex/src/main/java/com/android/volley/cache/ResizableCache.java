@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.volley.cache;
+
+/**
+ * A {@link Cache} whose byte budget can be changed while it is in use.
+ */
+public interface ResizableCache extends Cache {
+    /**
+     * Returns the number of bytes the cache may use.
+     */
+    public long getMaxSize();
+
+    /**
+     * Changes the number of bytes the cache may use, evicting entries in the background if it
+     * holds more than that.
+     */
+    public void setMaxSize(long maxSizeInBytes);
+}
@@ -0,0 +1,793 @@
+package com.android.volley.cache;
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.volley.VolleyLog;
+import com.android.volley.cache.DiskLruBasedCache.CacheHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Cache that packs small entries into append-only segment files, so that storing one
+ * costs an append rather than a file of its own and reading one costs a single positioned
+ * read on an already open file.
+ *
+ * <p>Every put appends a record holding the key, the metadata and the data to the newest
+ * segment, and a remove appends a tombstone; an in-memory index maps each key to its latest
+ * record. Segments in which most records have been overwritten are compacted on a background
+ * thread by copying their live records forward, and the oldest segments are dropped as a whole
+ * when the cache grows beyond its maximum size.</p>
+ *
+ * <p>Entries whose data is larger than the small entry limit are stored in another cache,
+ * typically a {@link DiskLruBasedCache} in a directory of its own.</p>
+ */
+public class SegmentLogCache implements Cache {
+
+    /** Default maximum size of the segments in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Default largest entry data kept in the segments. */
+    private static final int DEFAULT_MAX_SMALL_ENTRY_BYTES = 16 * 1024;
+
+    /** A new segment is started once the current one reaches this size. */
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+
+    /** Segments with no more than this share of live bytes are compacted. */
+    private static final float COMPACT_LIVE_RATIO = 0.5f;
+
+    private static final String SEGMENT_PREFIX = "segment.";
+
+    /** Length, CRC of the rest of the record, and operation. */
+    private static final int RECORD_HEADER_BYTES = 9;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /** The directory holding the segment files. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the segments in bytes. */
+    private final int mMaxSizeInBytes;
+
+    /** The largest entry data kept in the segments. */
+    private final int mMaxSmallEntryBytes;
+
+    /** Holds the entries too large for the segments. */
+    private final Cache mLargeEntryCache;
+
+    /** Latest record of each key stored in the segments. */
+    private final Map<String, Location> mIndex = new ConcurrentHashMap<String, Location>();
+
+    /**
+     * Latest tombstone of each removed key, whose bytes count as live until a later record
+     * of the key supersedes it or its segment is dropped. Guarded by mAppendLock.
+     */
+    private final Map<String, Location> mTombstones = new HashMap<String, Location>();
+
+    /**
+     * Held for reading while a segment file is used and for writing while one is dropped,
+     * and while the cache is opened, cleared or closed.
+     */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /** Serializes appends and the changes to the index and segments they make. */
+    private final Object mAppendLock = new Object();
+
+    /** Open segments by id, oldest first. Guarded by mAppendLock. */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /** The segment records are appended to. Guarded by mAppendLock. */
+    private Segment mActiveSegment;
+
+    /** Total size of the segment files. Guarded by mAppendLock. */
+    private long mTotalBytes;
+
+    /** Whether a cleanup is already scheduled. Guarded by mAppendLock. */
+    private boolean mCleanupScheduled;
+
+    private volatile boolean mOpen;
+
+    /** Counts for {@link #getStats()}, apart from those of the large entry cache. */
+    private final StatsCounter mStats = new StatsCounter();
+
+    /** Trims and compacts the segments off the request threads. */
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, 1, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final Runnable mCleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mAppendLock) {
+                mCleanupScheduled = false;
+            }
+            try {
+                trimToSize();
+                Segment victim;
+                // Stop once the cache is closed, or fails: the victim is then left in place.
+                while ((victim = findCompactionVictim()) != null) {
+                    if (!compact(victim)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                VolleyLog.e(e, "Failed to clean up segments in %s", mRootDirectory);
+            }
+        }
+    };
+
+    /** Where the latest record of a key is. */
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /** An open segment file. */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        /** Bytes written to the file. */
+        long size;
+        /** Bytes of records that are still the latest for their key, see mTombstones. */
+        long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                VolleyLog.e(e, "Failed to close segment %s", file);
+            }
+        }
+    }
+
+    /**
+     * Constructs an instance of the SegmentLogCache at the specified directory.
+     * @param rootDirectory The directory of the segment files.
+     * @param maxSizeInBytes The maximum size of the segments in bytes.
+     * @param maxSmallEntryBytes The largest entry data stored in the segments.
+     * @param largeEntryCache The cache that holds larger entries.
+     */
+    public SegmentLogCache(File rootDirectory, int maxSizeInBytes, int maxSmallEntryBytes,
+            Cache largeEntryCache) {
+        if (maxSmallEntryBytes > SEGMENT_BYTES / 2) {
+            throw new IllegalArgumentException("maxSmallEntryBytes > " + SEGMENT_BYTES / 2);
+        }
+        mRootDirectory = rootDirectory;
+        mMaxSizeInBytes = maxSizeInBytes;
+        mMaxSmallEntryBytes = maxSmallEntryBytes;
+        mLargeEntryCache = largeEntryCache;
+    }
+
+    /**
+     * Constructs an instance of the SegmentLogCache at the specified directory using the
+     * default maximum size of 5MB and keeping entries of up to 16KB in the segments.
+     * @param rootDirectory The directory of the segment files.
+     * @param largeEntryCache The cache that holds larger entries.
+     */
+    public SegmentLogCache(File rootDirectory, Cache largeEntryCache) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES, DEFAULT_MAX_SMALL_ENTRY_BYTES,
+                largeEntryCache);
+    }
+
+    /**
+     * Opens the segments in the root directory and rebuilds the index from their records.
+     * A record cut short by a crash ends its segment.
+     */
+    @Override
+    public void initialize() {
+        mLock.writeLock().lock();
+        try {
+            closeSegments();
+            if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                return;
+            }
+            synchronized (mAppendLock) {
+                File[] files = mRootDirectory.listFiles();
+                TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+                if (files != null) {
+                    for (File file : files) {
+                        int id = parseSegmentId(file.getName());
+                        if (id >= 0) {
+                            segmentFiles.put(id, file);
+                        }
+                    }
+                }
+                for (Map.Entry<Integer, File> file : segmentFiles.entrySet()) {
+                    try {
+                        Segment segment = new Segment(file.getKey(), file.getValue());
+                        mSegments.put(segment.id, segment);
+                        replay(segment);
+                        mTotalBytes += segment.size;
+                    } catch (IOException e) {
+                        VolleyLog.e(e, "Unable to read segment %s", file.getValue());
+                    }
+                }
+                // Never append to a segment that was written before, its tail may be torn.
+                int nextId = segmentFiles.isEmpty() ? 0 : segmentFiles.lastKey() + 1;
+                mActiveSegment = new Segment(nextId, segmentFile(nextId));
+                mSegments.put(nextId, mActiveSegment);
+            }
+            mOpen = true;
+        } catch (IOException e) {
+            VolleyLog.e(e, "Unable to open SegmentLogCache.");
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mLargeEntryCache.initialize();
+    }
+
+    /** Applies the records of {@code segment} to the index. Must hold mAppendLock. */
+    private void replay(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        byte[] bytes = new byte[(int) Math.min(fileSize, Integer.MAX_VALUE)];
+        readFully(segment.channel, ByteBuffer.wrap(bytes), 0);
+        int offset = 0;
+        while (offset + RECORD_HEADER_BYTES <= bytes.length) {
+            int length = getInt(bytes, offset);
+            if (length < RECORD_HEADER_BYTES || length > bytes.length - offset
+                    || getInt(bytes, offset + 4) != crc(bytes, offset, length)) {
+                break;
+            }
+            apply(segment, readKey(bytes, offset, length), bytes[offset + 8], offset, length);
+            offset += length;
+        }
+        if (offset != fileSize) {
+            VolleyLog.d("Truncating segment %s at %d of %d bytes", segment.file, offset, fileSize);
+            segment.channel.truncate(offset);
+        }
+        segment.size = offset;
+    }
+
+    /** Points the index at a record. Must hold mAppendLock. */
+    private void apply(Segment segment, String key, byte op, long offset, int length) {
+        Location location = new Location(segment, offset, length);
+        Location old;
+        Location oldTombstone;
+        if (op == OP_PUT) {
+            old = mIndex.put(key, location);
+            oldTombstone = mTombstones.remove(key);
+        } else {
+            old = mIndex.remove(key);
+            oldTombstone = mTombstones.put(key, location);
+        }
+        segment.liveBytes += length;
+        if (old != null) {
+            old.segment.liveBytes -= old.length;
+        }
+        if (oldTombstone != null) {
+            oldTombstone.segment.liveBytes -= oldTombstone.length;
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        recordLookup(start, entry);
+        return entry;
+    }
+
+    private void recordLookup(long start, Entry entry) {
+        if (entry != null) {
+            mStats.recordHit(System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+    }
+
+    private Entry getEntry(String key) {
+        mLock.readLock().lock();
+        try {
+            checkNotClosed();
+            Location location = mIndex.get(key);
+            if (location == null) {
+                return mLargeEntryCache.get(key);
+            }
+            byte[] record = new byte[location.length];
+            readFully(location.segment.channel, ByteBuffer.wrap(record), location.offset);
+            mStats.recordRead(record.length);
+            ByteArrayInputStream is = new ByteArrayInputStream(record, RECORD_HEADER_BYTES,
+                    record.length - RECORD_HEADER_BYTES);
+            CacheHeader header = CacheHeader.readHeader(is);
+            int start = record.length - is.available();
+            if (!key.equals(header.key) || record.length - start != header.size) {
+                throw new IOException("Record of " + key + " does not match its index entry");
+            }
+            return header.toCacheEntry(Arrays.copyOfRange(record, start, record.length));
+        } catch (IOException e) {
+            VolleyLog.d("Failed to get entry for key %s: %s", key, e);
+            mIndex.remove(key);
+            return null;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Small entries are read whole, since their data comes with the same read as the
+     * metadata; only large entries are loaded lazily.
+     */
+    @Override
+    public Entry getMetadata(String key) {
+        long start = System.nanoTime();
+        Entry entry = null;
+        if (mIndex.containsKey(key)) {
+            entry = getEntry(key);
+        }
+        if (entry == null) {
+            entry = mLargeEntryCache.getMetadata(key);
+        }
+        recordLookup(start, entry);
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long start = System.nanoTime();
+        putEntry(key, entry);
+        mStats.recordPut(System.nanoTime() - start, 0);
+    }
+
+    private void putEntry(String key, Entry entry) {
+        if (entry.getDataLength() > mMaxSmallEntryBytes) {
+            removeSmallEntry(key);
+            mLargeEntryCache.put(key, entry);
+            return;
+        }
+        mLock.readLock().lock();
+        try {
+            checkNotClosed();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(
+                    RECORD_HEADER_BYTES + 256 + entry.getDataLength());
+            os.write(new byte[RECORD_HEADER_BYTES]);
+            if (!new CacheHeader(key, entry).writeHeader(os)) {
+                throw new IOException("Failed to write header");
+            }
+            entry.writeDataTo(os);
+            byte[] record = seal(os.toByteArray(), OP_PUT);
+            append(key, record);
+            mStats.recordWrite(record.length);
+        } catch (IOException e) {
+            VolleyLog.e(e, "Failed to put entry for key %s", key);
+            mIndex.remove(key);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        // The entry may have been large before.
+        mLargeEntryCache.remove(key);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        if (!mIndex.containsKey(key)) {
+            mLargeEntryCache.invalidate(key, fullExpire);
+            return;
+        }
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        removeSmallEntry(key);
+        mLargeEntryCache.remove(key);
+    }
+
+    private void removeSmallEntry(String key) {
+        if (!mIndex.containsKey(key)) {
+            return;
+        }
+        mLock.readLock().lock();
+        try {
+            checkNotClosed();
+            append(key, tombstone(key));
+        } catch (IOException e) {
+            VolleyLog.e(e, "Failed to remove entry for key %s", key);
+            mIndex.remove(key);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Returns a tombstone record for {@code key}. */
+    private static byte[] tombstone(String key) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        byte[] record = new byte[RECORD_HEADER_BYTES + keyBytes.length];
+        System.arraycopy(keyBytes, 0, record, RECORD_HEADER_BYTES, keyBytes.length);
+        return seal(record, OP_REMOVE);
+    }
+
+    /** Fills in the length, CRC and operation of {@code record}. */
+    private static byte[] seal(byte[] record, byte op) {
+        record[8] = op;
+        putInt(record, 0, record.length);
+        putInt(record, 4, crc(record, 0, record.length));
+        return record;
+    }
+
+    /** Appends {@code record} for {@code key} and points the index at it. */
+    private void append(String key, byte[] record) throws IOException {
+        synchronized (mAppendLock) {
+            appendLocked(key, record);
+        }
+    }
+
+    private void appendLocked(String key, byte[] record) throws IOException {
+        if (mActiveSegment.size > 0 && mActiveSegment.size + record.length > SEGMENT_BYTES) {
+            int id = mActiveSegment.id + 1;
+            mActiveSegment = new Segment(id, segmentFile(id));
+            mSegments.put(id, mActiveSegment);
+        }
+        Segment segment = mActiveSegment;
+        long offset = segment.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, offset + buffer.position());
+        }
+        segment.size += record.length;
+        mTotalBytes += record.length;
+        apply(segment, key, record[8], offset, record.length);
+        if (!mCleanupScheduled && (mTotalBytes > mMaxSizeInBytes
+                || findCompactionVictimLocked() != null)) {
+            mCleanupScheduled = true;
+            mExecutor.execute(mCleanupRunnable);
+        }
+    }
+
+    /** Drops the oldest segments until the cache fits its maximum size. */
+    private void trimToSize() {
+        while (true) {
+            mLock.writeLock().lock();
+            try {
+                if (!mOpen) {
+                    return;
+                }
+                synchronized (mAppendLock) {
+                    if (mTotalBytes <= mMaxSizeInBytes || mSegments.size() < 2) {
+                        return;
+                    }
+                    mStats.recordEvictions(
+                            dropSegmentLocked(mSegments.firstEntry().getValue()));
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Returns a sealed segment that is mostly dead records, or null. */
+    private Segment findCompactionVictim() {
+        synchronized (mAppendLock) {
+            return findCompactionVictimLocked();
+        }
+    }
+
+    /** Returns true if a sealed segment is due to be compacted. */
+    // Visible for testing.
+    boolean hasCompactionVictim() {
+        return findCompactionVictim() != null;
+    }
+
+    /** Waits until the trims and compactions scheduled so far have run. */
+    // Visible for testing.
+    void awaitCleanup() throws InterruptedException, ExecutionException {
+        while (true) {
+            // The executor runs one task at a time, in order.
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+            synchronized (mAppendLock) {
+                // Compacting appends, which may have scheduled another cleanup.
+                if (!mCleanupScheduled) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Segment findCompactionVictimLocked() {
+        if (!mOpen) {
+            return null;
+        }
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActiveSegment
+                    && segment.liveBytes <= segment.size * COMPACT_LIVE_RATIO) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the records of {@code victim} that are still needed forward, then drops it.
+     * @return false if the cache was closed, or failed, and the victim is left in place
+     */
+    private boolean compact(Segment victim) throws IOException {
+        mLock.readLock().lock();
+        try {
+            if (!mOpen) {
+                return false;
+            }
+            byte[] bytes = new byte[(int) victim.size];
+            readFully(victim.channel, ByteBuffer.wrap(bytes), 0);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = getInt(bytes, offset);
+                String key = readKey(bytes, offset, length);
+                synchronized (mAppendLock) {
+                    Location location = mIndex.get(key);
+                    boolean live;
+                    if (bytes[offset + 8] == OP_PUT) {
+                        live = location != null && location.segment == victim
+                                && location.offset == offset;
+                    } else {
+                        // A tombstone only matters while an older segment may hold the key.
+                        Location tombstone = mTombstones.get(key);
+                        live = location == null && tombstone != null
+                                && tombstone.segment == victim && tombstone.offset == offset
+                                && mSegments.firstKey() != victim.id;
+                    }
+                    if (live) {
+                        appendLocked(key, Arrays.copyOfRange(bytes, offset, offset + length));
+                    }
+                }
+                offset += length;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        mLock.writeLock().lock();
+        try {
+            if (!mOpen) {
+                return false;
+            }
+            synchronized (mAppendLock) {
+                // Unless a clear() dropped it in the meantime.
+                if (mSegments.get(victim.id) == victim) {
+                    dropSegmentLocked(victim);
+                }
+            }
+            return mOpen;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes {@code segment} and its entries. Must hold the write lock and mAppendLock.
+     * @return the number of entries deleted
+     */
+    private int dropSegmentLocked(Segment segment) {
+        int dropped = 0;
+        Iterator<Location> locations = mIndex.values().iterator();
+        while (locations.hasNext()) {
+            if (locations.next().segment == segment) {
+                locations.remove();
+                dropped++;
+            }
+        }
+        Iterator<Location> tombstones = mTombstones.values().iterator();
+        while (tombstones.hasNext()) {
+            if (tombstones.next().segment == segment) {
+                tombstones.remove();
+            }
+        }
+        mSegments.remove(segment.id);
+        mTotalBytes -= segment.size;
+        segment.close();
+        if (!segment.file.delete()) {
+            VolleyLog.d("Could not delete segment %s", segment.file);
+        }
+        if (segment == mActiveSegment) {
+            try {
+                int id = segment.id + 1;
+                mActiveSegment = new Segment(id, segmentFile(id));
+                mSegments.put(id, mActiveSegment);
+            } catch (IOException e) {
+                VolleyLog.e(e, "Unable to start a new segment.");
+                mOpen = false;
+            }
+        }
+        return dropped;
+    }
+
+    @Override
+    public void clear() {
+        mLock.writeLock().lock();
+        try {
+            checkNotClosed();
+            synchronized (mAppendLock) {
+                while (!mSegments.isEmpty()) {
+                    dropSegmentLocked(mSegments.firstEntry().getValue());
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mLargeEntryCache.clear();
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns the counts of this cache, with the evictions and bytes moved of the cache for
+     * large entries added in.
+     */
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot().plusStorage(mLargeEntryCache.getStats());
+    }
+
+    /**
+     * Returns the size of the segments, including dead records that are not compacted yet,
+     * plus the size of the cache for large entries.
+     */
+    @Override
+    public long size() {
+        long segmentBytes;
+        synchronized (mAppendLock) {
+            segmentBytes = mTotalBytes;
+        }
+        return segmentBytes + mLargeEntryCache.size();
+    }
+
+    @Override
+    public void flush() {
+        mLock.readLock().lock();
+        try {
+            checkNotClosed();
+            synchronized (mAppendLock) {
+                mActiveSegment.channel.force(false);
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "Failed to flush segment %s", mActiveSegment.file);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        mLargeEntryCache.flush();
+    }
+
+    @Override
+    public void close() {
+        mLock.writeLock().lock();
+        try {
+            closeSegments();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mLargeEntryCache.close();
+    }
+
+    /** Must hold the write lock. */
+    private void closeSegments() {
+        mOpen = false;
+        synchronized (mAppendLock) {
+            for (Segment segment : mSegments.values()) {
+                segment.close();
+            }
+            mSegments.clear();
+            mIndex.clear();
+            mTombstones.clear();
+            mActiveSegment = null;
+            mTotalBytes = 0;
+        }
+    }
+
+    /** Check whether cache is closed or not. */
+    private void checkNotClosed() {
+        if (!mOpen) {
+            throw new IllegalStateException("segment log cache is not open");
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(mRootDirectory, SEGMENT_PREFIX + id);
+    }
+
+    private static int parseSegmentId(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the key of the record at {@code offset} of {@code bytes}. */
+    private static String readKey(byte[] bytes, int offset, int length) throws IOException {
+        if (bytes[offset + 8] == OP_REMOVE) {
+            return new String(bytes, offset + RECORD_HEADER_BYTES, length - RECORD_HEADER_BYTES,
+                    "UTF-8");
+        }
+        return CacheHeader.readHeader(new ByteArrayInputStream(bytes,
+                offset + RECORD_HEADER_BYTES, length - RECORD_HEADER_BYTES)).key;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    /** Returns the CRC of the record at {@code offset}, from its operation byte on. */
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset + 8, length - 8);
+        return (int) crc.getValue();
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24
+                | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int n) {
+        bytes[offset] = (byte) (n >>> 24);
+        bytes[offset + 1] = (byte) (n >>> 16);
+        bytes[offset + 2] = (byte) (n >>> 8);
+        bytes[offset + 3] = (byte) n;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the counts behind {@link CacheStats} for a cache implementation.
+ *
+ * <p>Counters are striped by thread: each thread adds to its own stripe, padded to a cache
+ * line of its own, so that the network and cache dispatchers recording at once don't contend
+ * on the same memory. Stripes are only summed when {@link #snapshot()} is called.</p>
+ */
+public final class StatsCounter {
+
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int PUTS = 2;
+    private static final int EVICTIONS = 3;
+    private static final int BYTES_READ = 4;
+    private static final int BYTES_WRITTEN = 5;
+    private static final int GET_NANOS = 6;
+    private static final int PUT_NANOS = 7;
+    private static final int GET_BUCKETS = 8;
+    private static final int PUT_BUCKETS = GET_BUCKETS + CacheStats.Latency.BUCKET_COUNT;
+
+    /** Slots per stripe, rounded up to whole 64-byte cache lines. */
+    private static final int STRIPE_SLOTS =
+            ((PUT_BUCKETS + CacheStats.Latency.BUCKET_COUNT + 7) / 8) * 8;
+
+    private static final int STRIPES = stripeCount();
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * STRIPE_SLOTS);
+
+    private static int stripeCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        return Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+    }
+
+    private int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_SLOTS;
+    }
+
+    /**
+     * Records a lookup that found an entry.
+     * @param nanos how long the lookup took, or -1 if it wasn't timed
+     */
+    public void recordHit(long nanos) {
+        recordGet(HITS, nanos);
+    }
+
+    /**
+     * Records a lookup that found nothing.
+     * @param nanos how long the lookup took, or -1 if it wasn't timed
+     */
+    public void recordMiss(long nanos) {
+        recordGet(MISSES, nanos);
+    }
+
+    private void recordGet(int counter, long nanos) {
+        int stripe = stripe();
+        mCells.incrementAndGet(stripe + counter);
+        if (nanos >= 0) {
+            mCells.addAndGet(stripe + GET_NANOS, nanos);
+            mCells.incrementAndGet(stripe + GET_BUCKETS + CacheStats.Latency.bucketOf(nanos));
+        }
+    }
+
+    /**
+     * Records an entry stored.
+     * @param nanos how long the put took, or -1 if it wasn't timed
+     * @param bytes the bytes written to storage
+     */
+    public void recordPut(long nanos, long bytes) {
+        int stripe = stripe();
+        mCells.incrementAndGet(stripe + PUTS);
+        mCells.addAndGet(stripe + BYTES_WRITTEN, bytes);
+        if (nanos >= 0) {
+            mCells.addAndGet(stripe + PUT_NANOS, nanos);
+            mCells.incrementAndGet(stripe + PUT_BUCKETS + CacheStats.Latency.bucketOf(nanos));
+        }
+    }
+
+    /** Records entry data written to storage that {@link #recordPut} didn't count. */
+    public void recordWrite(long bytes) {
+        mCells.addAndGet(stripe() + BYTES_WRITTEN, bytes);
+    }
+
+    /** Records entry data read from storage. */
+    public void recordRead(long bytes) {
+        mCells.addAndGet(stripe() + BYTES_READ, bytes);
+    }
+
+    /** Records entries the cache dropped on its own. */
+    public void recordEvictions(long count) {
+        mCells.addAndGet(stripe() + EVICTIONS, count);
+    }
+
+    /**
+     * Returns the counts so far. Counts recorded while this runs may or may not be included,
+     * but each one is included whole in every later snapshot.
+     */
+    public CacheStats snapshot() {
+        long[] sums = new long[STRIPE_SLOTS];
+        for (int base = 0; base < mCells.length(); base += STRIPE_SLOTS) {
+            for (int i = 0; i < STRIPE_SLOTS; i++) {
+                sums[i] += mCells.get(base + i);
+            }
+        }
+        long[] getBuckets = new long[CacheStats.Latency.BUCKET_COUNT];
+        long[] putBuckets = new long[CacheStats.Latency.BUCKET_COUNT];
+        System.arraycopy(sums, GET_BUCKETS, getBuckets, 0, getBuckets.length);
+        System.arraycopy(sums, PUT_BUCKETS, putBuckets, 0, putBuckets.length);
+        return new CacheStats(sums[HITS], sums[MISSES], sums[PUTS], sums[EVICTIONS],
+                sums[BYTES_READ], sums[BYTES_WRITTEN],
+                new CacheStats.Latency(getBuckets, sums[GET_NANOS]),
+                new CacheStats.Latency(putBuckets, sums[PUT_NANOS]));
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link Cache} that keeps recently used entries in memory in front of another cache,
+ * usually one on disk.
+ * <p>
+ * Writes, invalidations and removals go to both tiers. The memory tier is bounded by the
+ * approximate size of its entries and evicts the least recently used ones first; entries
+ * larger than an eighth of it are only kept in the backing cache. Callers get their own copy
+ * of each entry, so changes made to it, like the merged headers of a 304 response, do not leak
+ * into the cached one.
+ */
+public class TieredCache implements Cache {
+
+    /** Rough per-entry overhead of the entry object and its map node, in bytes. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /** Number of locks that changes to different keys are spread over. */
+    private static final int KEY_LOCK_STRIPES = 32;
+
+    private final Cache mBackingCache;
+
+    private final int mMaxMemoryBytes;
+
+    /** Entries held in memory, least recently used first. Guarded by {@code this}. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private int mMemoryBytes = 0;
+
+    /**
+     * Serialize changes to the same key, so that both tiers see them in the same order: the
+     * memory tier is updated before the lock is released, never after a later change of the
+     * backing cache.
+     */
+    private final Object[] mKeyLocks = new Object[KEY_LOCK_STRIPES];
+
+    /**
+     * Held for reading while a key is changed and for writing while the cache is cleared or
+     * closed, so that no change that reached the backing cache before a clear reaches the
+     * memory tier after it.
+     */
+    private final ReadWriteLock mClearLock = new ReentrantReadWriteLock();
+
+    /**
+     * Incremented on every change to the cache, so that a read from the backing cache that
+     * raced with a change is not copied into memory.
+     */
+    private long mModCount = 0;
+
+    private long mMemoryHitCount = 0;
+    private long mBackingHitCount = 0;
+    private long mMissCount = 0;
+
+    /** Lookups and puts as callers see them; storage counts come from the backing cache. */
+    private final StatsCounter mStats = new StatsCounter();
+
+    /**
+     * @param backingCache the cache holding every entry
+     * @param maxMemoryBytes the approximate number of bytes the memory tier may hold
+     */
+    public TieredCache(Cache backingCache, int maxMemoryBytes) {
+        if (maxMemoryBytes < 0) {
+            throw new IllegalArgumentException("maxMemoryBytes < 0: " + maxMemoryBytes);
+        }
+        mBackingCache = backingCache;
+        mMaxMemoryBytes = maxMemoryBytes;
+        for (int i = 0; i < mKeyLocks.length; i++) {
+            mKeyLocks[i] = new Object();
+        }
+    }
+
+    /** Returns the cache behind the memory tier. */
+    public Cache getBackingCache() {
+        return mBackingCache;
+    }
+
+    @Override
+    public void initialize() {
+        mBackingCache.initialize();
+    }
+
+    @Override
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        long modCount;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                mMemoryHitCount++;
+                mStats.recordHit(System.nanoTime() - start);
+                return entry.copy();
+            }
+            modCount = mModCount;
+        }
+        Entry entry = mBackingCache.get(key);
+        synchronized (this) {
+            if (entry == null) {
+                mMissCount++;
+                mStats.recordMiss(System.nanoTime() - start);
+                return null;
+            }
+            mBackingHitCount++;
+            if (modCount == mModCount) {
+                putInMemory(key, entry.copy());
+            }
+        }
+        mStats.recordHit(System.nanoTime() - start);
+        return entry;
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        long start = System.nanoTime();
+        long modCount;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                mMemoryHitCount++;
+                mStats.recordHit(System.nanoTime() - start);
+                return entry.copy();
+            }
+            modCount = mModCount;
+        }
+        Entry entry = mBackingCache.getMetadata(key);
+        synchronized (this) {
+            if (entry == null) {
+                mMissCount++;
+                mStats.recordMiss(System.nanoTime() - start);
+                return null;
+            }
+            mBackingHitCount++;
+            if (entry.bodyLoader == null) {
+                if (modCount == mModCount) {
+                    putInMemory(key, entry.copy());
+                }
+            } else {
+                // Copied into memory once the data turns out to be needed and is loaded.
+                entry.bodyLoader = new MemoryBodyLoader(key, entry, modCount);
+            }
+        }
+        mStats.recordHit(System.nanoTime() - start);
+        return entry;
+    }
+
+    /**
+     * Loads the data of an entry found in the backing cache with the loader it came with,
+     * then keeps the entry in memory, as {@link #get(String)} does, unless the cache changed
+     * in the meantime.
+     */
+    private final class MemoryBodyLoader implements BodyLoader {
+        private final String mKey;
+        private final BodyLoader mLoader;
+        /** The metadata as found, before callers had a chance to change theirs. */
+        private final Entry mMetadata;
+        private final long mModCount;
+
+        MemoryBodyLoader(String key, Entry entry, long modCount) {
+            mKey = key;
+            mLoader = entry.bodyLoader;
+            mMetadata = entry.copy();
+            mMetadata.bodyLoader = null;
+            mModCount = modCount;
+        }
+
+        @Override
+        public boolean load(Entry entry) {
+            if (!mLoader.load(entry)) {
+                return false;
+            }
+            synchronized (TieredCache.this) {
+                if (mModCount == TieredCache.this.mModCount) {
+                    Entry loaded = mMetadata.copy();
+                    loaded.data = entry.data;
+                    loaded.dataBuffer = entry.dataBuffer;
+                    putInMemory(mKey, loaded);
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long start = System.nanoTime();
+        mClearLock.readLock().lock();
+        try {
+            synchronized (lockFor(key)) {
+                mBackingCache.put(key, entry);
+                synchronized (this) {
+                    mModCount++;
+                    putInMemory(key, entry.copy());
+                }
+            }
+        } finally {
+            mClearLock.readLock().unlock();
+        }
+        mStats.recordPut(System.nanoTime() - start, 0);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        mClearLock.readLock().lock();
+        try {
+            synchronized (lockFor(key)) {
+                mBackingCache.invalidate(key, fullExpire);
+                synchronized (this) {
+                    mModCount++;
+                    Entry entry = mEntries.get(key);
+                    if (entry != null) {
+                        entry.softTtl = 0;
+                        if (fullExpire) {
+                            entry.ttl = 0;
+                        }
+                    }
+                }
+            }
+        } finally {
+            mClearLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        mClearLock.readLock().lock();
+        try {
+            synchronized (lockFor(key)) {
+                mBackingCache.remove(key);
+                synchronized (this) {
+                    mModCount++;
+                    removeFromMemory(key);
+                }
+            }
+        } finally {
+            mClearLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mClearLock.writeLock().lock();
+        try {
+            mBackingCache.clear();
+            clearMemory();
+        } finally {
+            mClearLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return mBackingCache.size();
+    }
+
+    @Override
+    public void flush() {
+        mBackingCache.flush();
+    }
+
+    @Override
+    public void close() {
+        mClearLock.writeLock().lock();
+        try {
+            mBackingCache.close();
+            clearMemory();
+        } finally {
+            mClearLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot().plusStorage(mBackingCache.getStats());
+    }
+
+    /** Returns the number of lookups answered from memory. */
+    public synchronized long getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    /** Returns the number of lookups answered by the backing cache. */
+    public synchronized long getBackingHitCount() {
+        return mBackingHitCount;
+    }
+
+    /** Returns the number of lookups found in neither tier. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the approximate number of bytes held by the memory tier. */
+    public synchronized int getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    /** Returns the lock that serializes changes to {@code key}. */
+    private Object lockFor(String key) {
+        int hash = key.hashCode();
+        // Spread the high bits, the low ones of similar keys tend to collide.
+        hash ^= (hash >>> 16);
+        return mKeyLocks[(hash & 0x7fffffff) % mKeyLocks.length];
+    }
+
+    private synchronized void clearMemory() {
+        mModCount++;
+        mEntries.clear();
+        mMemoryBytes = 0;
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        removeFromMemory(key);
+        int size = sizeOf(key, entry);
+        // Mapped bodies are large by definition, and holding on to them would keep their
+        // files' pages mapped after the backing cache deleted them.
+        if (size > mMaxMemoryBytes / 8 || entry.data == null && entry.dataBuffer != null) {
+            return;
+        }
+        mEntries.put(key, entry);
+        mMemoryBytes += size;
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            mMemoryBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private void removeFromMemory(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mMemoryBytes -= sizeOf(key, entry);
+        }
+    }
+
+    private static int sizeOf(String key, Entry entry) {
+        int size = ENTRY_OVERHEAD_BYTES + key.length() * 2;
+        if (entry.data != null) {
+            size += entry.data.length;
+        }
+        if (entry.etag != null) {
+            size += entry.etag.length() * 2;
+        }
+        for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+            size += (header.getKey().length() + header.getValue().length()) * 2;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import android.os.Process;
+
+import com.android.volley.VolleyLog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Cache} that hands puts to a background writer thread instead of writing them
+ * to the backing cache on the caller's thread, so that network dispatchers do not wait on
+ * disk I/O before delivering a response.
+ * <p>
+ * Pending writes are kept in memory and served to {@link #get(String)} until they have been
+ * written. Several puts of the same key before it is written are coalesced. When
+ * {@code maxPendingWrites} keys are waiting, further puts block until the writer catches up.
+ * {@link #remove(String)}, {@link #invalidate(String, boolean)} and {@link #clear()} apply to
+ * pending writes too and wait for a write in progress, so a write never resurrects an entry
+ * removed after it was put. {@link #flush()} and {@link #close()} wait for pending writes.
+ * <p>
+ * To use it, wrap the cache passed to the {@link com.android.volley.RequestQueue}:
+ * <pre>new RequestQueue(context, new WriteBehindCache(cache, 32), network)</pre>
+ */
+public class WriteBehindCache implements Cache {
+
+    private final Cache mBackingCache;
+
+    private final int mMaxPendingWrites;
+
+    /** Entries waiting to be written, oldest first. Guarded by {@code this}. */
+    private final LinkedHashMap<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+
+    /** Held while writing to the backing cache, and by changes that must not race a write. */
+    private final Object mWriteLock = new Object();
+
+    private Thread mWriter;
+
+    private boolean mClosed = false;
+
+    /** Lookups and puts as callers see them; storage counts come from the backing cache. */
+    private final StatsCounter mStats = new StatsCounter();
+
+    /**
+     * @param backingCache the cache entries are eventually written to
+     * @param maxPendingWrites the number of keys that may wait to be written before puts block
+     */
+    public WriteBehindCache(Cache backingCache, int maxPendingWrites) {
+        if (maxPendingWrites <= 0) {
+            throw new IllegalArgumentException("maxPendingWrites <= 0: " + maxPendingWrites);
+        }
+        mBackingCache = backingCache;
+        mMaxPendingWrites = maxPendingWrites;
+    }
+
+    @Override
+    public void initialize() {
+        mBackingCache.initialize();
+        synchronized (this) {
+            mClosed = false;
+            startWriter();
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                return recordLookup(start, pending.copy());
+            }
+        }
+        return recordLookup(start, mBackingCache.get(key));
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                return recordLookup(start, pending.copy());
+            }
+        }
+        return recordLookup(start, mBackingCache.getMetadata(key));
+    }
+
+    private Entry recordLookup(long start, Entry entry) {
+        if (entry != null) {
+            mStats.recordHit(System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long start = System.nanoTime();
+        putPendingOrThrough(key, entry);
+        // Bytes written are counted by the backing cache, when the entry reaches it.
+        mStats.recordPut(System.nanoTime() - start, 0);
+    }
+
+    private void putPendingOrThrough(String key, Entry entry) {
+        synchronized (this) {
+            if (!mClosed) {
+                startWriter();
+                while (!mClosed && mPending.size() >= mMaxPendingWrites
+                        && !mPending.containsKey(key)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep the interrupt for the caller and write the entry through.
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (!mClosed && (mPending.size() < mMaxPendingWrites
+                        || mPending.containsKey(key))) {
+                    mPending.put(key, entry.copy());
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+        // Closed, or interrupted while waiting for room.
+        synchronized (mWriteLock) {
+            mBackingCache.put(key, entry);
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                Entry pending = mPending.get(key);
+                if (pending != null) {
+                    pending.softTtl = 0;
+                    if (fullExpire) {
+                        pending.ttl = 0;
+                    }
+                }
+            }
+            mBackingCache.invalidate(key, fullExpire);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.remove(key);
+                notifyAll();
+            }
+            mBackingCache.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.clear();
+                notifyAll();
+            }
+            mBackingCache.clear();
+        }
+    }
+
+    @Override
+    public long size() {
+        return mBackingCache.size();
+    }
+
+    @Override
+    public void flush() {
+        awaitPendingWrites();
+        mBackingCache.flush();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        awaitPendingWrites();
+        mBackingCache.close();
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot().plusStorage(mBackingCache.getStats());
+    }
+
+    /** Returns the number of keys waiting to be written. */
+    public synchronized int getPendingWriteCount() {
+        return mPending.size();
+    }
+
+    private synchronized void awaitPendingWrites() {
+        boolean interrupted = false;
+        while (!mPending.isEmpty() && mWriter != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Starts the writer thread if it is not running. Called with {@code this} held. */
+    private void startWriter() {
+        if (mWriter != null) {
+            return;
+        }
+        mWriter = new Thread("Volley-CacheWriter") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    writePendingEntries();
+                } finally {
+                    synchronized (WriteBehindCache.this) {
+                        mWriter = null;
+                        WriteBehindCache.this.notifyAll();
+                    }
+                }
+            }
+        };
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /** Writes pending entries until the cache is closed and nothing is left to write. */
+    private void writePendingEntries() {
+        while (true) {
+            String key;
+            Entry entry;
+            synchronized (this) {
+                while (mPending.isEmpty()) {
+                    if (mClosed) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only quits once closed and drained.
+                    }
+                }
+                Map.Entry<String, Entry> eldest = mPending.entrySet().iterator().next();
+                key = eldest.getKey();
+                entry = eldest.getValue();
+            }
+            synchronized (mWriteLock) {
+                synchronized (this) {
+                    // Removed or cleared while we were waiting for the lock.
+                    if (mPending.get(key) != entry) {
+                        continue;
+                    }
+                }
+                try {
+                    mBackingCache.put(key, entry);
+                } catch (RuntimeException e) {
+                    VolleyLog.e(e, "Failed to write cache entry for %s", key);
+                }
+                synchronized (this) {
+                    // Keep the key pending if it was put again while being written.
+                    if (mPending.get(key) == entry) {
+                        mPending.remove(key);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
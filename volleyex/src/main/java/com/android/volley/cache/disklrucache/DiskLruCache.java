@@ -16,8 +16,15 @@
 
 package com.android.volley.cache.disklrucache;
 
-import java.io.BufferedWriter;
+import com.android.volley.VolleyLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,15 +38,20 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -89,9 +101,13 @@ public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TEMP = "journal.tmp";
     static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String INDEX_SNAPSHOT_FILE = "journal.snapshot";
+    static final String INDEX_SNAPSHOT_FILE_TEMP = "journal.snapshot.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
+    /** Share of the cache, in percent, that new entries may fill before they must be admitted. */
+    static final int WINDOW_PERCENT = 1;
     static final String STRING_KEY_PATTERN = "[a-z0-9_-]{1,120}";
     static final Pattern LEGAL_KEY_PATTERN = Pattern.compile(STRING_KEY_PATTERN);
     private static final String CLEAN = "CLEAN";
@@ -99,6 +115,38 @@ public final class DiskLruCache implements Closeable {
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    /** First four bytes of a binary journal; a text journal starts with {@link #MAGIC}. */
+    static final int BINARY_MAGIC = 0xD15C1A0C;
+    static final int VERSION_2 = 2;
+    /** Binary journal whose header also holds a generation number. */
+    static final int VERSION_3 = 3;
+    static final int SNAPSHOT_MAGIC = 0xD15C5A9E;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_FLAG_READABLE = 1;
+    private static final int SNAPSHOT_FLAG_DIRTY = 2;
+    private static final int SNAPSHOT_FLAG_REFERENCED = 4;
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+    /** CLEAN followed by the time the entry expires, as a varint. */
+    private static final byte OP_CLEAN_EXPIRING = 5;
+    /** A value replaced in place: the lengths and expiry, as varints, but not a use. */
+    private static final byte OP_UPDATE = 6;
+
+    /** Source of journal generation numbers. */
+    private static final Random GENERATIONS = new Random();
+
+    /** Journal records buffered at most before they are written out together. */
+    private static final int GROUP_COMMIT_MAX_RECORDS = 64;
+
+    /** Longest time a journal record stays buffered before it is written out. */
+    private static final long GROUP_COMMIT_WINDOW_MS = 200;
+
+    /** Names of the value files the cache writes, clean or dirty. */
+    private static final Pattern VALUE_FILE_PATTERN =
+        Pattern.compile(STRING_KEY_PATTERN + "\\.\\d+(\\.tmp)?");
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -137,21 +185,126 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The text format above is only read, to migrate existing caches. The
+     * journal is written in an equivalent binary format: a header of four
+     * big-endian ints (BINARY_MAGIC, 3, the application's version and the
+     * value count) and a long generation number that changes whenever the
+     * journal is rebuilt, followed by records made of an op byte (1 CLEAN,
+     * 2 DIRTY, 3 REMOVE, 4 READ, 5 CLEAN of an expiring entry, 6 UPDATE), the
+     * key length as a byte, the ASCII key and, for CLEAN and UPDATE, the length
+     * of each value as a varint, followed for ops 5 and 6 by the time the entry
+     * expires in milliseconds since the epoch, also as a varint. UPDATE records
+     * a value replaced by replaceValue(), which leaves the entry's place for
+     * eviction alone. Version 2 journals have no generation number.
+     *
+     * On close and on checkpoint() the whole index is also written to
+     * "journal.snapshot", together with the generation and length of the
+     * journal it was taken from, and a CRC. Opening the cache loads that
+     * snapshot in a single read and only replays the journal records appended
+     * after it; a snapshot of another generation or with a bad CRC is ignored
+     * and the whole journal is replayed.
+     *
+     * Records are written through a buffer that is flushed once it holds
+     * GROUP_COMMIT_MAX_RECORDS records or GROUP_COMMIT_WINDOW_MS after the
+     * first unflushed one, rather than once per edit. A crash may lose the
+     * last few records, which is safe: a value file is only renamed into place
+     * once complete, a journal that ends in a partial or malformed record is
+     * replayed up to that record, and value files the replayed journal does
+     * not account for are deleted when the cache is opened.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
     private final File journalFileBackup;
+    private final File snapshotFile;
+    private final File snapshotFileTmp;
     private final int appVersion;
     private long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries =
-        new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private DataOutputStream journalWriter;
+    private final EvictionMode evictionMode;
+    /** In access order for {@link EvictionMode#LRU}, in clock order for {@link EvictionMode#CLOCK}. */
+    private final LinkedHashMap<String, Entry> lruEntries;
     private int redundantOpCount;
 
+    /** Generation of the journal, written in its header; see {@link #VERSION_3}. */
+    private long journalGeneration;
+
+    /**
+     * Entries that expire, soonest first. They are evicted before any other
+     * entry and removed by {@link #sweepExpired()}.
+     */
+    private final TreeSet<Entry> expiryQueue = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.expiresAt != b.expiresAt) {
+                return a.expiresAt < b.expiresAt ? -1 : 1;
+            }
+            return a.key.compareTo(b.key);
+        }
+    });
+
+    /** Number of expired entries removed, and the bytes they took. */
+    private long expiredEntryCount;
+    private long expiredByteCount;
+
+    /** Number of entries removed to fit the cache's size or because they expired. */
+    private long evictionCount;
+
+    /** The periodic run of {@link #sweepExpired()}, or null. */
+    private ScheduledFuture<?> expirySweep;
+
+    private final Runnable expirySweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                synchronized (DiskLruCache.this) {
+                    if (journalWriter != null) {
+                        sweepExpired();
+                    }
+                }
+            } catch (IOException e) {
+                VolleyLog.e(e, "DiskLruCache %s sweep failed", directory);
+            }
+        }
+    };
+
+    /**
+     * True if the cache was opened from a snapshot taken on close with no journal
+     * records after it, so no value file can be left over from an interrupted edit.
+     */
+    private boolean openedFromCleanSnapshot;
+
+    /** True if reference bits changed since the journal was last rebuilt. */
+    private boolean referencesChanged;
+
+    /** Recent use counts of keys, or null unless the policy is {@link AdmissionPolicy#TINY_LFU}. */
+    private FrequencySketch sketch;
+
+    /**
+     * TINY_LFU: entries created since they were last evicted for, least
+     * recently used first. They stay here, out of eviction's reach, until the
+     * window outgrows {@link #WINDOW_PERCENT} of the cache.
+     */
+    private final LinkedHashMap<String, Entry> window =
+        new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long windowSize;
+
+    /** Entries dropped because they were used less often than the entry they would evict. */
+    private long rejectedAdmissionCount;
+
+    /** Told of the entries the cache removes on its own, or null. */
+    private EvictionListener evictionListener;
+
+    /** Journal records written since the journal was last flushed. */
+    private int unflushedRecordCount;
+
+    /** True while a flush of the journal is scheduled on {@link #executorService}. */
+    private boolean journalFlushScheduled;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -159,9 +312,11 @@ public final class DiskLruCache implements Closeable {
      */
     private long nextSequenceNumber = 0;
 
-    /** This cache uses a single background thread to evict entries. */
-    final ThreadPoolExecutor executorService =
-        new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /**
+     * This cache uses a single background thread to evict entries and to flush
+     * the journal.
+     */
+    final ScheduledThreadPoolExecutor executorService = newExecutorService();
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         public Void call() throws Exception {
             synchronized (DiskLruCache.this) {
@@ -177,15 +332,84 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
     };
+    private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                journalFlushScheduled = false;
+                if (journalWriter != null && unflushedRecordCount > 0) {
+                    flushJournal();
+                }
+            }
+            return null;
+        }
+    };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private static ScheduledThreadPoolExecutor newExecutorService() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+        EvictionMode evictionMode) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
         this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.snapshotFile = new File(directory, INDEX_SNAPSHOT_FILE);
+        this.snapshotFileTmp = new File(directory, INDEX_SNAPSHOT_FILE_TEMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.evictionMode = evictionMode;
+        // Insertion ordered; in LRU mode uses move entries to the end explicitly,
+        // so that lookups which aren't uses leave the order alone.
+        this.lruEntries = new LinkedHashMap<String, Entry>(0, 0.75f, false);
+    }
+
+    /** Whether new entries may push older ones out of a full cache. */
+    public enum AdmissionPolicy {
+        /** Every new entry is kept, evicting whatever eviction mode picks. */
+        ALWAYS,
+
+        /**
+         * Window TinyLFU: new entries first sit in a small window. When the
+         * window overflows, its oldest entry is kept only if its key was used
+         * more often lately than that of the entry it would evict, as counted
+         * by a frequency sketch of gets. This keeps a burst of entries used
+         * once, like a scrolled-through image feed, from flushing out entries
+         * that are read over and over.
+         */
+        TINY_LFU
+    }
+
+    /** Notified of the entries the cache removes on its own. */
+    public interface EvictionListener {
+        /**
+         * Called after the entry named {@code key} was evicted to fit the
+         * cache's size, or removed because it expired. Called with the cache
+         * locked, so it must not call back into the cache or wait for a thread
+         * that might.
+         */
+        void onEvicted(String key);
+    }
+
+    /** How entries are picked for eviction once the cache is over its size. */
+    public enum EvictionMode {
+        /**
+         * Least recently used first. Every read appends a READ record to the
+         * journal so that the order survives a restart.
+         */
+        LRU,
+
+        /**
+         * Second chance: reads only set a reference bit in memory, and eviction
+         * passes over referenced entries once, clearing their bit. Reads write
+         * nothing to disk; reference bits are saved when the journal is rebuilt
+         * and when the cache is closed.
+         */
+        CLOCK
     }
 
     /**
@@ -199,6 +423,21 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
         throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, EvictionMode.LRU);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param evictionMode how entries are picked for eviction
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+        EvictionMode evictionMode) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -219,7 +458,8 @@ public final class DiskLruCache implements Closeable {
         }
 
         // Prefer to pick up where we left off.
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache =
+            new DiskLruCache(directory, appVersion, valueCount, maxSize, evictionMode);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
@@ -238,12 +478,558 @@ public final class DiskLruCache implements Closeable {
 
         // Create a new empty cache.
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, evictionMode);
         cache.rebuildJournal();
         return cache;
     }
 
+    /**
+     * Converts the values of an entry stored with an earlier value count to
+     * the current one; see {@link #open(File, int, int, long, EvictionMode,
+     * int, ValueUpgrader)}.
+     */
+    public interface ValueUpgrader {
+        /**
+         * Writes the values of the entry named {@code key} to {@code newValues},
+         * reading them from {@code oldValues}. Old value files may be renamed
+         * to new ones rather than copied; those left behind are deleted.
+         *
+         * @return false to drop the entry instead
+         */
+        boolean upgrade(String key, File[] oldValues, File[] newValues) throws IOException;
+    }
+
+    /**
+     * Opens the cache in {@code directory} like {@link #open(File, int, int,
+     * long, EvictionMode)}, but if the cache there was written with {@code
+     * oldValueCount} values per entry, converts its entries with {@code
+     * upgrader} first instead of discarding them. The entries keep their
+     * order and expiry.
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+        EvictionMode evictionMode, int oldValueCount, ValueUpgrader upgrader) throws IOException {
+        if (oldValueCount > 0 && oldValueCount != valueCount
+            && readValueCount(directory, appVersion) == oldValueCount) {
+            try {
+                upgrade(directory, appVersion, oldValueCount, valueCount, maxSize, evictionMode,
+                    upgrader);
+            } catch (IOException e) {
+                // Opening it with the new value count below discards the cache.
+                VolleyLog.e(e, "DiskLruCache %s could not be upgraded", directory);
+            }
+        }
+        return open(directory, appVersion, valueCount, maxSize, evictionMode);
+    }
+
+    /**
+     * Returns the value count in the header of the journal in {@code
+     * directory}, or -1 if there is no readable journal for {@code
+     * appVersion}.
+     */
+    private static int readValueCount(File directory, int appVersion) {
+        File journal = new File(directory, JOURNAL_FILE);
+        if (!journal.exists()) {
+            journal = new File(directory, JOURNAL_FILE_BACKUP);
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+            int magic = in.readInt();
+            if (magic == BINARY_MAGIC) {
+                int version = in.readInt();
+                int appVersionValue = in.readInt();
+                int valueCountValue = in.readInt();
+                return (version == VERSION_2 || version == VERSION_3)
+                    && appVersionValue == appVersion ? valueCountValue : -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            Util.closeQuietly(in);
+        }
+        StrictLineReader reader = null;
+        try {
+            reader = new StrictLineReader(new FileInputStream(journal), Util.US_ASCII);
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String appVersionString = reader.readLine();
+            String valueCountString = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)) {
+                return -1;
+            }
+            return Integer.parseInt(valueCountString);
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            Util.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Rewrites the cache in {@code directory}, which has {@code oldValueCount}
+     * values per entry, with {@code valueCount}, and leaves it closed.
+     */
+    private static void upgrade(File directory, int appVersion, int oldValueCount,
+        int valueCount, long maxSize, EvictionMode evictionMode, ValueUpgrader upgrader)
+        throws IOException {
+        DiskLruCache old = open(directory, appVersion, oldValueCount, maxSize, evictionMode);
+        DiskLruCache upgraded =
+            new DiskLruCache(directory, appVersion, valueCount, maxSize, evictionMode);
+        try {
+            for (Entry entry : old.lruEntries.values()) {
+                if (!entry.readable) {
+                    continue;
+                }
+                Entry upgradedEntry = upgraded.new Entry(entry.key);
+                File[] oldValues = new File[oldValueCount];
+                for (int i = 0; i < oldValueCount; i++) {
+                    oldValues[i] = entry.getCleanFile(i);
+                }
+                File[] newValues = new File[valueCount];
+                for (int i = 0; i < valueCount; i++) {
+                    newValues[i] = upgradedEntry.getDirtyFile(i);
+                }
+                boolean kept;
+                try {
+                    kept = upgrader.upgrade(entry.key, oldValues, newValues);
+                } catch (IOException e) {
+                    kept = false;
+                }
+                for (File oldValue : oldValues) {
+                    deleteIfExists(oldValue);
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    if (kept && newValues[i].exists()) {
+                        File clean = upgradedEntry.getCleanFile(i);
+                        renameTo(newValues[i], clean, true);
+                        upgradedEntry.lengths[i] = clean.length();
+                    } else {
+                        kept = false;
+                        deleteIfExists(newValues[i]);
+                    }
+                }
+                if (!kept) {
+                    for (int i = 0; i < valueCount; i++) {
+                        deleteIfExists(upgradedEntry.getCleanFile(i));
+                    }
+                    continue;
+                }
+                upgradedEntry.readable = true;
+                upgradedEntry.referenced = entry.referenced;
+                upgraded.setExpiry(upgradedEntry, entry.expiresAt);
+                upgraded.lruEntries.put(entry.key, upgradedEntry);
+            }
+        } finally {
+            old.discard();
+        }
+        upgraded.rebuildJournal();
+        upgraded.journalWriter.close();
+        upgraded.journalWriter = null;
+    }
+
     private void readJournal() throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(journalFile)));
+        boolean binary;
+        try {
+            binary = in.readInt() == BINARY_MAGIC;
+            if (binary) {
+                readBinaryJournal(in);
+            }
+        } catch (EOFException e) {
+            throw new IOException("journal is empty or truncated");
+        } finally {
+            Util.closeQuietly(in);
+        }
+        if (!binary) {
+            readTextJournal();
+            // Migrate to the binary format.
+            rebuildJournal();
+        }
+    }
+
+    private void readBinaryJournal(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        int appVersionValue = in.readInt();
+        int valueCountValue = in.readInt();
+        if ((version != VERSION_2 && version != VERSION_3) || appVersionValue != appVersion
+            || valueCountValue != valueCount) {
+            throw new IOException("unexpected journal header: [" + version + ", "
+                + appVersionValue + ", " + valueCountValue + "]");
+        }
+        long headerLength = 16;
+        SnapshotPosition snapshot = null;
+        if (version == VERSION_3) {
+            journalGeneration = in.readLong();
+            headerLength += 8;
+            snapshot = readIndexSnapshot();
+        }
+
+        int recordCount = 0;
+        if (snapshot != null) {
+            // Only the records appended after the snapshot are left to replay.
+            long toSkip = snapshot.journalLength - headerLength;
+            while (toSkip > 0) {
+                int skipped = in.skipBytes((int) Math.min(toSkip, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                toSkip -= skipped;
+            }
+            recordCount = snapshot.journalRecordCount;
+        }
+        int tailRecordCount = 0;
+        boolean complete = true;
+        long[] lengths = new long[valueCount];
+        while (true) {
+            int op = in.read();
+            if (op == -1) {
+                break;
+            }
+            try {
+                String key = readKey(in);
+                long expiresAt = 0;
+                if (op == OP_CLEAN || op == OP_CLEAN_EXPIRING || op == OP_UPDATE) {
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = readVarLong(in);
+                    }
+                }
+                if (op == OP_CLEAN_EXPIRING || op == OP_UPDATE) {
+                    expiresAt = readVarLong(in);
+                }
+                if (!applyRecord(op, key, lengths, expiresAt)) {
+                    complete = false;
+                    break;
+                }
+                recordCount++;
+                tailRecordCount++;
+            } catch (EOFException truncated) {
+                complete = false;
+                break;
+            }
+        }
+        redundantOpCount = recordCount - lruEntries.size();
+        openedFromCleanSnapshot = snapshot != null && snapshot.takenOnClose
+            && tailRecordCount == 0 && complete;
+
+        // If the journal ends in a partial or malformed record, the rest of it
+        // can't be trusted; rebuild the journal before appending to it.
+        if (!complete) {
+            rebuildJournal();
+        } else {
+            journalWriter = newJournalWriter(true);
+        }
+    }
+
+    /** Where an index snapshot was taken in the journal. */
+    private static final class SnapshotPosition {
+        /** Length of the journal when the snapshot was taken. */
+        final long journalLength;
+        /** Number of records in the journal when the snapshot was taken. */
+        final int journalRecordCount;
+        /** True if the snapshot was taken by {@link #close()}. */
+        final boolean takenOnClose;
+
+        SnapshotPosition(long journalLength, int journalRecordCount, boolean takenOnClose) {
+            this.journalLength = journalLength;
+            this.journalRecordCount = journalRecordCount;
+            this.takenOnClose = takenOnClose;
+        }
+    }
+
+    /**
+     * Loads the entries of the index snapshot if it was taken from the current
+     * journal, and returns where in the journal it was taken; null if there is
+     * no usable snapshot, in which case no entries are loaded.
+     */
+    private SnapshotPosition readIndexSnapshot() {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try {
+            byte[] bytes = readFileFully(snapshotFile);
+            if (bytes.length < 4) {
+                throw new IOException("snapshot is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipBytes(bytes.length - 4);
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("snapshot checksum mismatch");
+            }
+
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION
+                || in.readLong() != journalGeneration) {
+                return null;
+            }
+            long journalLength = in.readLong();
+            if (in.readInt() != appVersion || in.readInt() != valueCount
+                || journalLength > journalFile.length()) {
+                return null;
+            }
+            int journalRecordCount = in.readInt();
+            boolean takenOnClose = in.readBoolean();
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = readKey(in);
+                if (key == null) {
+                    throw new IOException("snapshot holds an illegal key");
+                }
+                Entry entry = new Entry(key);
+                for (int t = 0; t < valueCount; t++) {
+                    entry.lengths[t] = readVarLong(in);
+                    if (entry.lengths[t] < 0) {
+                        throw new IOException("snapshot holds an illegal length");
+                    }
+                }
+                long expiresAt = readVarLong(in);
+                if (expiresAt < 0) {
+                    throw new IOException("snapshot holds an illegal expiry");
+                }
+                int flags = in.readUnsignedByte();
+                entry.readable = (flags & SNAPSHOT_FLAG_READABLE) != 0;
+                entry.referenced = (flags & SNAPSHOT_FLAG_REFERENCED) != 0;
+                if ((flags & SNAPSHOT_FLAG_DIRTY) != 0) {
+                    entry.currentEditor = new Editor(entry);
+                }
+                lruEntries.put(key, entry);
+                setExpiry(entry, expiresAt);
+            }
+            return new SnapshotPosition(journalLength, journalRecordCount, takenOnClose);
+        } catch (IOException e) {
+            VolleyLog.d("DiskLruCache %s ignoring index snapshot: %s", directory, e.getMessage());
+            lruEntries.clear();
+            expiryQueue.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to the snapshot file, to be loaded on the next open
+     * instead of replaying the journal up to this point.
+     */
+    private void writeIndexSnapshot(boolean onClose) throws IOException {
+        flushJournal();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + lruEntries.size() * 40);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(journalGeneration);
+        out.writeLong(journalFile.length());
+        out.writeInt(appVersion);
+        out.writeInt(valueCount);
+        out.writeInt(redundantOpCount + lruEntries.size());
+        out.writeBoolean(onClose);
+        out.writeInt(lruEntries.size());
+        for (Entry entry : lruEntries.values()) {
+            out.writeByte(entry.key.length());
+            out.writeBytes(entry.key);
+            for (long length : entry.lengths) {
+                writeVarLong(out, length);
+            }
+            writeVarLong(out, entry.expiresAt);
+            out.writeByte((entry.readable ? SNAPSHOT_FLAG_READABLE : 0)
+                | (entry.currentEditor != null ? SNAPSHOT_FLAG_DIRTY : 0)
+                | (entry.referenced ? SNAPSHOT_FLAG_REFERENCED : 0));
+        }
+        CRC32 crc = new CRC32();
+        byte[] data = bytes.toByteArray();
+        crc.update(data);
+        DataOutputStream file = new DataOutputStream(new FileOutputStream(snapshotFileTmp));
+        try {
+            file.write(data);
+            file.writeInt((int) crc.getValue());
+        } finally {
+            file.close();
+        }
+        renameTo(snapshotFileTmp, snapshotFile, true);
+    }
+
+    private static byte[] readFileFully(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("file is too large: " + length);
+            }
+            byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    /** Applies a binary journal record. Returns false if the record is malformed. */
+    private boolean applyRecord(int op, String key, long[] lengths, long expiresAt) {
+        if (key == null) {
+            return false;
+        }
+        if (op == OP_REMOVE) {
+            Entry removed = lruEntries.remove(key);
+            if (removed != null) {
+                setExpiry(removed, 0);
+            }
+            return true;
+        }
+        if (op == OP_UPDATE) {
+            Entry entry = lruEntries.get(key);
+            if (expiresAt < 0 || entry == null || !entry.readable) {
+                return false;
+            }
+            for (int i = 0; i < valueCount; i++) {
+                if (lengths[i] < 0) {
+                    return false;
+                }
+                entry.lengths[i] = lengths[i];
+            }
+            setExpiry(entry, expiresAt);
+            return true;
+        }
+        if (op == OP_CLEAN_EXPIRING) {
+            if (expiresAt <= 0) {
+                return false;
+            }
+            op = OP_CLEAN;
+        }
+        if (op != OP_CLEAN && op != OP_DIRTY && op != OP_READ) {
+            return false;
+        }
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        } else {
+            moveToMostRecent(entry);
+        }
+        if (op == OP_CLEAN) {
+            for (int i = 0; i < valueCount; i++) {
+                if (lengths[i] < 0) {
+                    return false;
+                }
+                entry.lengths[i] = lengths[i];
+            }
+            entry.readable = true;
+            entry.currentEditor = null;
+            setExpiry(entry, expiresAt);
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        }
+        if (op == OP_READ) {
+            // In LRU mode the work was already done by moveToMostRecent().
+            entry.referenced = true;
+        }
+        return true;
+    }
+
+    /** LRU mode: moves {@code entry} to the most recently used end of {@link #lruEntries}. */
+    private void moveToMostRecent(Entry entry) {
+        if (evictionMode == EvictionMode.LRU) {
+            lruEntries.remove(entry.key);
+            lruEntries.put(entry.key, entry);
+        }
+    }
+
+    /** Reads a length-prefixed key, returning null if it is not a legal key. */
+    private static String readKey(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            int c = in.readUnsignedByte();
+            if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+                return null;
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        return -1; // Malformed.
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void writeRecord(DataOutputStream out, byte op, Entry entry) throws IOException {
+        if (op == OP_CLEAN && entry.expiresAt != 0) {
+            op = OP_CLEAN_EXPIRING;
+        }
+        out.writeByte(op);
+        out.writeByte(entry.key.length());
+        out.writeBytes(entry.key);
+        if (op == OP_CLEAN || op == OP_CLEAN_EXPIRING || op == OP_UPDATE) {
+            for (long length : entry.lengths) {
+                writeVarLong(out, length);
+            }
+        }
+        if (op == OP_CLEAN_EXPIRING || op == OP_UPDATE) {
+            writeVarLong(out, entry.expiresAt);
+        }
+    }
+
+    /** Sets when {@code entry} expires, 0 for never, keeping {@link #expiryQueue} in order. */
+    private void setExpiry(Entry entry, long expiresAt) {
+        if (entry.expiresAt == expiresAt) {
+            return;
+        }
+        if (entry.expiresAt != 0) {
+            expiryQueue.remove(entry);
+        }
+        entry.expiresAt = expiresAt;
+        if (expiresAt != 0) {
+            expiryQueue.add(entry);
+        }
+    }
+
+    private DataOutputStream newJournalWriter(boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(append ? journalFile : journalFileTmp, append)));
+    }
+
+    /**
+     * Appends a record to the journal. It is written out with the records
+     * that follow it, within {@link #GROUP_COMMIT_WINDOW_MS}.
+     */
+    private void appendRecord(byte op, Entry entry) throws IOException {
+        writeRecord(journalWriter, op, entry);
+        if (++unflushedRecordCount >= GROUP_COMMIT_MAX_RECORDS) {
+            flushJournal();
+        } else if (!journalFlushScheduled) {
+            journalFlushScheduled = true;
+            executorService.schedule(journalFlushCallable, GROUP_COMMIT_WINDOW_MS,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        journalWriter.flush();
+        unflushedRecordCount = 0;
+    }
+
+    /** Reads a journal in the text format of earlier versions. */
+    private void readTextJournal() throws IOException {
         StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
         try {
             String magic = reader.readLine();
@@ -270,14 +1056,6 @@ public final class DiskLruCache implements Closeable {
                 }
             }
             redundantOpCount = lineCount - lruEntries.size();
-
-            // If we ended on a truncated line, rebuild the journal before appending to it.
-            if (reader.hasUnterminatedLine()) {
-                rebuildJournal();
-            } else {
-                journalWriter = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(journalFile, true), Util.US_ASCII));
-            }
         } finally {
             Util.closeQuietly(reader);
         }
@@ -306,6 +1084,8 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+        } else {
+            moveToMostRecent(entry);
         }
 
         if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
@@ -316,7 +1096,8 @@ public final class DiskLruCache implements Closeable {
         } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
             entry.currentEditor = new Editor(entry);
         } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
-            // This work was already done by calling lruEntries.get().
+            // In LRU mode the work was already done by moveToMostRecent().
+            entry.referenced = true;
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -328,6 +1109,7 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(snapshotFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -341,6 +1123,33 @@ public final class DiskLruCache implements Closeable {
                     deleteIfExists(entry.getDirtyFile(t));
                 }
                 i.remove();
+                setExpiry(entry, 0);
+            }
+        }
+        if (!openedFromCleanSnapshot) {
+            // Listing a large cache directory is slow; after a clean close it holds no strays.
+            deleteUnknownValueFiles();
+        }
+    }
+
+    /**
+     * Deletes value files that no entry accounts for, such as files of edits
+     * whose journal records were lost in a crash.
+     */
+    private void deleteUnknownValueFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!VALUE_FILE_PATTERN.matcher(name).matches()) {
+                continue;
+            }
+            // Dirty files are garbage at this point; clean ones must belong to an entry.
+            if (name.endsWith(".tmp")
+                || !lruEntries.containsKey(name.substring(0, name.indexOf('.')))) {
+                deleteIfExists(file);
             }
         }
     }
@@ -354,24 +1163,24 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+        DataOutputStream writer = newJournalWriter(false);
         try {
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION_1);
-            writer.write("\n");
-            writer.write(Integer.toString(appVersion));
-            writer.write("\n");
-            writer.write(Integer.toString(valueCount));
-            writer.write("\n");
-            writer.write("\n");
+            // A new generation makes snapshots of the old journal stale.
+            journalGeneration = nextGeneration();
+            writer.writeInt(BINARY_MAGIC);
+            writer.writeInt(VERSION_3);
+            writer.writeInt(appVersion);
+            writer.writeInt(valueCount);
+            writer.writeLong(journalGeneration);
 
             for (Entry entry : lruEntries.values()) {
                 if (entry.currentEditor != null) {
-                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                    writeRecord(writer, OP_DIRTY, entry);
                 } else {
-                    writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                    writeRecord(writer, OP_CLEAN, entry);
+                    if (evictionMode == EvictionMode.CLOCK && entry.referenced) {
+                        writeRecord(writer, OP_READ, entry);
+                    }
                 }
             }
         } finally {
@@ -384,8 +1193,17 @@ public final class DiskLruCache implements Closeable {
         renameTo(journalFileTmp, journalFile, false);
         journalFileBackup.delete();
 
-        journalWriter = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+        journalWriter = newJournalWriter(true);
+        unflushedRecordCount = 0;
+        referencesChanged = false;
+    }
+
+    private static long nextGeneration() {
+        long generation;
+        do {
+            generation = GENERATIONS.nextLong();
+        } while (generation == 0);
+        return generation;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -406,11 +1224,28 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * the head of the LRU queue, or marked as referenced in CLOCK mode.
      */
     public synchronized Snapshot get(String key) throws IOException {
+        return snapshot(key, true);
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key} like {@link #get}, but
+     * without counting it as a use: the entry keeps its place for eviction.
+     * For scans over many entries that shouldn't all look popular afterwards.
+     */
+    public synchronized Snapshot peek(String key) throws IOException {
+        return snapshot(key, false);
+    }
+
+    private Snapshot snapshot(String key, boolean use) throws IOException {
         checkNotClosed();
         validateKey(key);
+        if (use && sketch != null) {
+            // Misses count too: a key asked for again and again deserves admission.
+            sketch.increment(key);
+        }
         Entry entry = lruEntries.get(key);
         if (entry == null) {
             return null;
@@ -440,15 +1275,111 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        if (!use) {
+            return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+        }
+        if (entry.inWindow) {
+            window.get(key);
+        }
+        if (evictionMode == EvictionMode.CLOCK) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+                referencesChanged = true;
+            }
+        } else {
+            moveToMostRecent(entry);
+            redundantOpCount++;
+            appendRecord(OP_READ, entry);
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
         }
 
         return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
     }
 
+    /**
+     * Opens the value at {@code index} of the entry named {@code key}, as of a
+     * {@link Snapshot} taken earlier, to read a value the snapshot didn't need
+     * without reading the others again. Does not count as a use; the snapshot
+     * did.
+     *
+     * @return null if the entry has been removed or replaced since the snapshot
+     *     with the given sequence number was taken
+     */
+    public synchronized InputStream openValue(String key, long sequenceNumber, int index)
+        throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable || entry.sequenceNumber != sequenceNumber) {
+            return null;
+        }
+        try {
+            return new FileInputStream(entry.getCleanFile(index));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the value at {@code index} of the entry named {@code key}, as of
+     * a {@link Snapshot} taken earlier, with {@code value}, without counting it
+     * as a use: unlike an edit, the entry keeps its place for eviction, and
+     * its sequence number, so that the snapshot can still open its other
+     * values. The value is written while the cache is locked, so this is meant
+     * for small values such as metadata.
+     *
+     * @param expiresAtMillis when the entry expires, 0 if it never does, or -1
+     *     to keep its current expiry
+     * @return false if the entry has been removed or replaced since the
+     *     snapshot was taken, or is being edited
+     */
+    public synchronized boolean replaceValue(String key, long sequenceNumber, int index,
+        byte[] value, long expiresAtMillis) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        if (index < 0 || index >= valueCount) {
+            throw new IllegalArgumentException("Expected index " + index + " to "
+                + "be greater than 0 and less than the maximum value count "
+                + "of " + valueCount);
+        }
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable || entry.sequenceNumber != sequenceNumber
+            || entry.currentEditor != null) {
+            return false;
+        }
+        File dirty = entry.getDirtyFile(index);
+        OutputStream out = new FileOutputStream(dirty);
+        try {
+            out.write(value);
+        } catch (IOException e) {
+            Util.closeQuietly(out);
+            deleteIfExists(dirty);
+            throw e;
+        }
+        out.close();
+        if (!dirty.renameTo(entry.getCleanFile(index))) {
+            deleteIfExists(dirty);
+            throw new IOException("failed to replace " + entry.getCleanFile(index));
+        }
+        long oldLength = entry.lengths[index];
+        entry.lengths[index] = value.length;
+        size = size - oldLength + value.length;
+        if (entry.inWindow) {
+            windowSize = windowSize - oldLength + value.length;
+        }
+        if (expiresAtMillis >= 0) {
+            setExpiry(entry, expiresAtMillis);
+        }
+        redundantOpCount++;
+        appendRecord(OP_UPDATE, entry);
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        return true;
+    }
+
     /**
      * Returns an editor for the entry named {@code key}, or null if another
      * edit is in progress.
@@ -470,14 +1401,16 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         } else if (entry.currentEditor != null) {
             return null; // Another edit is in progress.
+        } else {
+            moveToMostRecent(entry);
         }
 
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        // No need to flush before the files are created: files of edits
+        // missing from the journal are deleted when the cache is opened.
+        appendRecord(OP_DIRTY, entry);
         return editor;
     }
 
@@ -503,6 +1436,36 @@ public final class DiskLruCache implements Closeable {
         executorService.submit(cleanupCallable);
     }
 
+    /**
+     * Sets whether new entries are always kept or must earn their place, see
+     * {@link AdmissionPolicy}. Use counts start from zero when TinyLFU is
+     * turned on, and are kept in memory only.
+     */
+    public synchronized void setAdmissionPolicy(AdmissionPolicy policy) {
+        if (policy == AdmissionPolicy.TINY_LFU) {
+            if (sketch == null) {
+                sketch = new FrequencySketch(lruEntries.size());
+            }
+            return;
+        }
+        sketch = null;
+        for (Entry entry : window.values()) {
+            entry.inWindow = false;
+        }
+        window.clear();
+        windowSize = 0;
+    }
+
+    /** Returns the number of new entries TinyLFU dropped instead of evicting an older one. */
+    public synchronized long getRejectedAdmissionCount() {
+        return rejectedAdmissionCount;
+    }
+
+    /** Returns the keys of the entries currently in the cache, including ones being edited. */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(lruEntries.keySet());
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
@@ -542,6 +1505,9 @@ public final class DiskLruCache implements Closeable {
                     long newLength = clean.length();
                     entry.lengths[i] = newLength;
                     size = size - oldLength + newLength;
+                    if (entry.inWindow) {
+                        windowSize = windowSize - oldLength + newLength;
+                    }
                 }
             } else {
                 deleteIfExists(dirty);
@@ -550,17 +1516,31 @@ public final class DiskLruCache implements Closeable {
 
         redundantOpCount++;
         entry.currentEditor = null;
+        if (success && !entry.readable && sketch != null) {
+            entry.inWindow = true;
+            window.put(entry.key, entry);
+            windowSize += entrySize(entry);
+            if (lruEntries.size() > sketch.capacity()) {
+                sketch.ensureCapacity(lruEntries.size() * 2);
+            }
+        }
         if (entry.readable | success) {
+            if (entry.readable && success) {
+                // An update counts as a use, as it would move the entry in LRU order.
+                entry.referenced = true;
+            }
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            if (success && editor.expiresAt >= 0) {
+                setExpiry(entry, editor.expiresAt);
+            }
+            appendRecord(OP_CLEAN, entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            appendRecord(OP_REMOVE, entry);
         }
-        journalWriter.flush();
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -591,6 +1571,9 @@ public final class DiskLruCache implements Closeable {
             return false;
         }
 
+        if (entry.inWindow) {
+            leaveWindow(entry);
+        }
         for (int i = 0; i < valueCount; i++) {
             File file = entry.getCleanFile(i);
             if (file.exists() && !file.delete()) {
@@ -601,8 +1584,9 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        appendRecord(OP_REMOVE, entry);
         lruEntries.remove(key);
+        setExpiry(entry, 0);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -626,7 +1610,18 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        flushJournal();
+    }
+
+    /**
+     * Force buffered operations to the filesystem and writes a snapshot of the
+     * index, so that the next open replays only the journal records written
+     * after this call.
+     */
+    public synchronized void checkpoint() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        writeIndexSnapshot(false);
     }
 
     /** Closes this cache. Stored values will remain on the filesystem. */
@@ -634,20 +1629,295 @@ public final class DiskLruCache implements Closeable {
         if (journalWriter == null) {
             return; // Already closed.
         }
+        setExpirySweepInterval(0, TimeUnit.MILLISECONDS);
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
             if (entry.currentEditor != null) {
                 entry.currentEditor.abort();
             }
         }
         trimToSize();
+        if (referencesChanged) {
+            // Checkpoint the reference bits, reads did not journal them.
+            rebuildJournal();
+        }
+        try {
+            writeIndexSnapshot(true);
+        } catch (IOException e) {
+            // The journal is complete, the next open just replays all of it.
+            snapshotFile.delete();
+        }
+        journalWriter.close();
+        journalWriter = null;
+    }
+
+    /**
+     * Closes this cache without trimming it or saving its index, for a cache
+     * whose files are about to be deleted or moved out of the way. Edits in
+     * progress are aborted.
+     */
+    public synchronized void discard() throws IOException {
+        if (journalWriter == null) {
+            return; // Already closed.
+        }
+        setExpirySweepInterval(0, TimeUnit.MILLISECONDS);
+        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
         journalWriter.close();
         journalWriter = null;
     }
 
     private void trimToSize() throws IOException {
+        int entryCount = lruEntries.size();
+        try {
+            evictToSize();
+        } finally {
+            evictionCount += entryCount - lruEntries.size();
+        }
+    }
+
+    private void evictToSize() throws IOException {
+        if (size > maxSize) {
+            // Expired entries go first, whatever their place in LRU or clock order.
+            removeExpired(System.currentTimeMillis(), true);
+        }
+        if (sketch != null) {
+            trimToSizeTinyLfu();
+            return;
+        }
+        if (evictionMode == EvictionMode.CLOCK) {
+            trimToSizeClock();
+            return;
+        }
         while (size > maxSize) {
             Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            evict(toEvict.getKey());
+        }
+    }
+
+    /**
+     * Removes the entries that expired at or before {@code now}, soonest first,
+     * stopping once the cache fits if {@code untilFits}. Entries being edited
+     * are left alone.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    private long removeExpired(long now, boolean untilFits) throws IOException {
+        List<Entry> expired = new ArrayList<Entry>();
+        long bytes = 0;
+        for (Entry entry : expiryQueue) {
+            if (entry.expiresAt > now || (untilFits && size - bytes <= maxSize)) {
+                break;
+            }
+            if (entry.currentEditor == null) {
+                expired.add(entry);
+                for (long length : entry.lengths) {
+                    bytes += length;
+                }
+            }
+        }
+        for (Entry entry : expired) {
+            evict(entry.key);
+        }
+        expiredEntryCount += expired.size();
+        expiredByteCount += bytes;
+        return bytes;
+    }
+
+    /**
+     * Removes every expired entry now.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    public synchronized long sweepExpired() throws IOException {
+        checkNotClosed();
+        int entryCount = lruEntries.size();
+        long bytes = removeExpired(System.currentTimeMillis(), false);
+        evictionCount += entryCount - lruEntries.size();
+        if (bytes > 0) {
+            flushJournal();
+        }
+        return bytes;
+    }
+
+    /**
+     * Runs {@link #sweepExpired()} on the cache's background thread every
+     * {@code interval}, so that expired entries give their space back before
+     * the cache fills up. A non-positive interval stops the sweeps.
+     */
+    public synchronized void setExpirySweepInterval(long interval, TimeUnit unit) {
+        if (expirySweep != null) {
+            expirySweep.cancel(false);
+            expirySweep = null;
+        }
+        if (interval > 0) {
+            expirySweep = executorService.scheduleWithFixedDelay(expirySweepRunnable,
+                interval, interval, unit);
+        }
+    }
+
+    /** Returns the number of expired entries removed since the cache was opened. */
+    public synchronized long getExpiredEntryCount() {
+        return expiredEntryCount;
+    }
+
+    /** Returns the bytes freed by removing expired entries since the cache was opened. */
+    public synchronized long getExpiredByteCount() {
+        return expiredByteCount;
+    }
+
+    /**
+     * Returns the number of entries the cache removed on its own since it was
+     * opened, to fit its size or because they expired.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Evicts for {@link AdmissionPolicy#TINY_LFU}. While the window is over
+     * its share of the cache its oldest entry is a candidate for admission,
+     * and is weighed against the entry eviction mode would pick: the one whose
+     * key was used less often lately goes. Once the window fits, eviction
+     * proceeds as usual among admitted entries.
+     */
+    private void trimToSizeTinyLfu() throws IOException {
+        long windowMaxSize = maxSize * WINDOW_PERCENT / 100;
+        // While there is room, entries leave the window without a contest.
+        while (size <= maxSize && windowSize > windowMaxSize) {
+            Entry candidate = oldestInWindow();
+            if (candidate == null) {
+                break;
+            }
+            leaveWindow(candidate);
+        }
+        while (size > maxSize) {
+            Entry victim = nextVictim();
+            Entry candidate = null;
+            if (windowSize > windowMaxSize || victim == null) {
+                candidate = oldestInWindow();
+            }
+            if (candidate == null && victim == null) {
+                break;
+            }
+            if (candidate != null) {
+                leaveWindow(candidate);
+            }
+            if (victim == null) {
+                evict(candidate.key);
+            } else if (candidate != null
+                && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                rejectedAdmissionCount++;
+                evict(candidate.key);
+            } else {
+                evict(victim.key);
+            }
+        }
+    }
+
+    /** Returns the least recently used window entry not being edited, or null. */
+    private Entry oldestInWindow() {
+        for (Entry entry : window.values()) {
+            if (entry.currentEditor == null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the admitted entry eviction mode would evict next, or null if
+     * there is none that can be removed. In CLOCK mode this advances the hand.
+     */
+    private Entry nextVictim() {
+        if (evictionMode == EvictionMode.LRU) {
+            for (Entry entry : lruEntries.values()) {
+                if (!entry.inWindow && entry.currentEditor == null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+        int steps = lruEntries.size() * 2;
+        while (steps-- > 0) {
+            Entry entry = lruEntries.values().iterator().next();
+            if (!entry.inWindow && !entry.referenced && entry.currentEditor == null) {
+                return entry;
+            }
+            if (!entry.inWindow) {
+                entry.referenced = false;
+            }
+            referencesChanged = true;
+            lruEntries.remove(entry.key);
+            lruEntries.put(entry.key, entry);
+        }
+        return null;
+    }
+
+    /** Removes the entry named {@code key} on the cache's own account. */
+    private void evict(String key) throws IOException {
+        if (remove(key) && evictionListener != null) {
+            evictionListener.onEvicted(key);
+        }
+    }
+
+    /**
+     * Sets the listener told of the entries evicted or removed as expired
+     * from now on, or null for none. Explicit removals are not reported.
+     */
+    public synchronized void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
+    /**
+     * Moves the entry named {@code key} out of the TinyLFU window, as if it
+     * had been admitted, if it is there. For entries that others depend on,
+     * which shouldn't be dropped in an admission contest of their own while
+     * the entries depending on them are kept; they are evicted as usual.
+     */
+    public synchronized void admit(String key) {
+        checkNotClosed();
+        Entry entry = lruEntries.get(key);
+        if (entry != null && entry.inWindow) {
+            leaveWindow(entry);
+        }
+    }
+
+    private void leaveWindow(Entry entry) {
+        window.remove(entry.key);
+        entry.inWindow = false;
+        windowSize -= entrySize(entry);
+    }
+
+    private static long entrySize(Entry entry) {
+        long size = 0;
+        for (long length : entry.lengths) {
+            size += length;
+        }
+        return size;
+    }
+
+    /**
+     * Evicts from the hand of the clock, which is the head of
+     * {@link #lruEntries}. Referenced entries and entries being edited are
+     * moved to the tail instead, with their reference bit cleared.
+     */
+    private void trimToSizeClock() throws IOException {
+        // Each entry is passed over at most twice: once with its bit set, once
+        // without, so this ends even if every entry is being edited.
+        int steps = lruEntries.size() * 2;
+        while (size > maxSize && steps-- > 0) {
+            Entry entry = lruEntries.values().iterator().next();
+            if (entry.referenced || entry.currentEditor != null) {
+                entry.referenced = false;
+                referencesChanged = true;
+                lruEntries.remove(entry.key);
+                lruEntries.put(entry.key, entry);
+            } else {
+                evict(entry.key);
+            }
         }
     }
 
@@ -696,6 +1966,14 @@ public final class DiskLruCache implements Closeable {
             return DiskLruCache.this.edit(key, sequenceNumber);
         }
 
+        /**
+         * Returns the sequence number of the entry as of this snapshot, for
+         * {@link DiskLruCache#openValue}.
+         */
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
         /** Returns the unbuffered stream with the value for {@code index}. */
         public InputStream getInputStream(int index) {
             return ins[index];
@@ -731,12 +2009,28 @@ public final class DiskLruCache implements Closeable {
         private final boolean[] written;
         private boolean hasErrors;
         private boolean committed;
+        /** Expiry to commit, or -1 to keep the entry's current one. */
+        private long expiresAt = -1;
 
         private Editor(Entry entry) {
             this.entry = entry;
             this.written = (entry.readable) ? null : new boolean[valueCount];
         }
 
+        /**
+         * Sets when the entry expires, in milliseconds since the epoch, or 0 if
+         * it never does. Expired entries are evicted first. Takes effect when
+         * the edit is committed; entries keep their expiry if this isn't called.
+         */
+        public void setExpiresAt(long expiresAtMillis) {
+            if (expiresAtMillis < 0) {
+                throw new IllegalArgumentException("expiresAtMillis < 0");
+            }
+            synchronized (DiskLruCache.this) {
+                expiresAt = expiresAtMillis;
+            }
+        }
+
         /**
          * Returns an unbuffered input stream to read the last committed value,
          * or null if no value has been committed.
@@ -900,19 +2194,20 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** CLOCK mode: true if the entry was used since the hand last passed it. */
+        private boolean referenced;
+
+        /** When this entry expires in milliseconds since the epoch, or 0 if it doesn't. */
+        private long expiresAt;
+
+        /** TINY_LFU: true while this entry waits in the window to be admitted. */
+        private boolean inWindow;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
         /** Set lengths using decimal numbers like "10123". */
         private void setLengths(String[] strings) throws IOException {
             if (strings.length != valueCount) {
@@ -22,6 +22,7 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyLog;
 import com.android.volley.image.ImageScheme;
+import com.android.volley.toolbox.ByteBufferInputStream;
 import com.android.volley.toolbox.ContentLengthInputStream;
 import com.android.volley.utils.IOUtils;
 
@@ -249,7 +250,7 @@ public class ImageRequest extends Request<Bitmap> {
             try {
                 return doParse(response);
             } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.getDataLength(), getUrl());
                 throw e;
             }
         }
@@ -352,12 +353,22 @@ public class ImageRequest extends Request<Bitmap> {
      * @return {@link InputStream} of image
      */
     protected InputStream getStreamFromResponse(NetworkResponse response) {
+        if (null == response.data && null != response.dataBuffer) {
+            // Decode straight from the memory-mapped cache file.
+            return response.dataBuffer.hasRemaining()
+                    ? new ByteBufferInputStream(response.dataBuffer) : null;
+        }
         if(null == response.data || response.data.length == 0) {
             return null;
         }
         return new ByteArrayInputStream(response.data);
     }
 
+    @Override
+    public boolean acceptsMappedData() {
+        return true;
+    }
+
     /**
      * Retrieves {@link InputStream} of image by URI (image is located on the local file system or SD card).
      *
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Headers;
+import com.android.volley.Request;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * An HTTP stack that hands back status, headers and body directly as an
+ * {@link HttpStackResponse}. {@link BasicNetwork} talks to such stacks without going through
+ * Apache {@link HttpResponse} objects.
+ *
+ * <p>{@link #performRequest} is kept for callers of the older {@link HttpStack} contract and
+ * adapts the result of {@link #executeRequest}.</p>
+ */
+public abstract class BaseHttpStack implements HttpStack {
+
+    /**
+     * Performs an HTTP request with the given parameters.
+     *
+     * @param request the request to perform
+     * @param additionalHeaders additional headers to be sent together with
+     *         {@link Request#getHeaders()}
+     * @return the HTTP response; its content stream must be closed by the caller
+     */
+    public abstract HttpStackResponse executeRequest(Request<?> request,
+            Map<String, String> additionalHeaders) throws IOException, AuthFailureError;
+
+    /**
+     * @deprecated Use {@link #executeRequest}, which does not allocate Apache HTTP objects.
+     */
+    @Deprecated
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        HttpStackResponse response = executeRequest(request, additionalHeaders);
+        BasicHttpResponse apacheResponse = new BasicHttpResponse(
+                new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), response.statusCode, ""));
+        Headers headers = response.headers;
+        for (int i = 0; i < headers.size(); i++) {
+            apacheResponse.addHeader(new BasicHeader(headers.name(i), headers.value(i)));
+        }
+        if (response.content != null) {
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(response.content);
+            entity.setContentLength(response.contentLength);
+            entity.setContentEncoding(headers.get("Content-Encoding"));
+            entity.setContentType(headers.get("Content-Type"));
+            apacheResponse.setEntity(entity);
+        }
+        return apacheResponse;
+    }
+}
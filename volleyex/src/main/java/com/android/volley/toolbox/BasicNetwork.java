@@ -21,12 +21,14 @@ import android.os.SystemClock;
 import com.android.volley.AuthFailureError;
 import com.android.volley.cache.Cache;
 import com.android.volley.cache.Cache.Entry;
+import com.android.volley.Headers;
 import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
 import com.android.volley.RedirectError;
 import com.android.volley.Request;
+import com.android.volley.ResponseTooLargeError;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
@@ -37,19 +39,17 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.impl.cookie.DateUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
-import java.util.Collections;
-import java.util.Date;
+import java.net.URL;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * A network performing Volley requests over an {@link HttpStack}.
@@ -61,10 +61,38 @@ public class BasicNetwork implements Network {
 
     private static int DEFAULT_POOL_SIZE = 4096;
 
+    /** Bytes reserved up front for a body whose length the server did not send. */
+    private static final int UNKNOWN_LENGTH_RESERVATION = 16 * 1024;
+
+    /** Status code of a permanent redirect that keeps the request method (RFC 7538). */
+    private static final int SC_PERMANENT_REDIRECT = 308;
+
+    /** Default number of redirects followed for a single request. */
+    public static final int DEFAULT_MAX_REDIRECTS = 5;
+
+    /** Number of permanent redirects remembered. */
+    private static final int MAX_REMEMBERED_REDIRECTS = 128;
+
     protected final HttpStack mHttpStack;
 
     protected final ByteArrayPool mPool;
 
+    protected final ResponseByteBudget mBudget;
+
+    private volatile int mMaxRedirects = DEFAULT_MAX_REDIRECTS;
+
+    /**
+     * Final URLs of permanently moved resources, by method and URL, least recently used
+     * first. Only GET and HEAD redirects are remembered, see {@link #remembersRedirects(int)}.
+     */
+    private final Map<String, String> mPermanentRedirects =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_REMEMBERED_REDIRECTS;
+                }
+            };
+
     /**
      * @param httpStack HTTP stack to be used
      */
@@ -79,29 +107,55 @@ public class BasicNetwork implements Network {
      * @param pool a buffer pool that improves GC performance in copy operations
      */
     public BasicNetwork(HttpStack httpStack, ByteArrayPool pool) {
+        this(httpStack, pool, ResponseByteBudget.forHeap());
+    }
+
+    /**
+     * @param httpStack HTTP stack to be used
+     * @param pool a buffer pool that improves GC performance in copy operations
+     * @param budget bounds the response bytes buffered by all requests at once
+     */
+    public BasicNetwork(HttpStack httpStack, ByteArrayPool pool, ResponseByteBudget budget) {
         mHttpStack = httpStack;
         mPool = pool;
+        mBudget = budget;
+    }
+
+    /**
+     * Sets the number of redirects followed for a single request before it fails with a
+     * {@link RedirectError}. 0 disables following redirects.
+     */
+    public void setMaxRedirects(int maxRedirects) {
+        if (maxRedirects < 0) {
+            throw new IllegalArgumentException("maxRedirects < 0: " + maxRedirects);
+        }
+        mMaxRedirects = maxRedirects;
     }
 
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
+        // Where the redirects followed so far started, while they have all been permanent.
+        String permanentRedirectSource =
+                remembersRedirects(request.getMethod()) ? request.getUrl() : null;
+        applyPermanentRedirect(request);
+        int redirectCount = 0;
         while (true) {
-            HttpResponse httpResponse = null;
+            HttpStackResponse httpResponse = null;
             byte[] responseContents = null;
-            Map<String, String> responseHeaders = Collections.emptyMap();
+            Headers responseHeaders = Headers.EMPTY;
             try {
                 // Gather headers.
                 Map<String, String> headers = new HashMap<String, String>();
                 addCacheHeaders(headers, request.getCacheEntry());
-                httpResponse = mHttpStack.performRequest(request, headers);
-                StatusLine statusLine = httpResponse.getStatusLine();
-                int statusCode = statusLine.getStatusCode();
+                httpResponse = executeRequest(request, headers);
+                int statusCode = httpResponse.statusCode;
 
-                responseHeaders = convertHeaders(httpResponse.getAllHeaders());
+                responseHeaders = httpResponse.headers;
                 // Handle cache validation.
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
 
+                    closeQuietly(httpResponse.content);
                     Entry entry = request.getCacheEntry();
                     if (entry == null) {
                         return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, null,
@@ -109,25 +163,57 @@ public class BasicNetwork implements Network {
                                 SystemClock.elapsedRealtime() - requestStart);
                     }
 
+                    if (!entry.loadData()) {
+                        // The cached body went away after its metadata was read, so the 304
+                        // cannot be served; ask again for the full response.
+                        request.addMarker("not-modified-body-missing");
+                        request.setCacheEntry(null);
+                        continue;
+                    }
+
                     // A HTTP 304 response does not have all header fields. We
                     // have to use the header fields from the cache entry plus
                     // the new ones from the response.
                     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
-                    entry.responseHeaders.putAll(responseHeaders);
-                    return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data,
-                            entry.responseHeaders, true,
-                            SystemClock.elapsedRealtime() - requestStart);
+                    entry.responseHeaders = new Headers.Builder(entry.responseHeaders)
+                            .addAll(responseHeaders).build();
+                    long networkTimeMs = SystemClock.elapsedRealtime() - requestStart;
+                    if (entry.data == null && entry.dataBuffer != null
+                            && request.acceptsMappedData()) {
+                        return NetworkResponse.fromBuffer(HttpStatus.SC_NOT_MODIFIED,
+                                entry.dataBuffer, entry.responseHeaders, true, networkTimeMs);
+                    }
+                    return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.getData(),
+                            entry.responseHeaders, true, networkTimeMs);
                 }
                 
-                // Handle moved resources
-                if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
-                	String newUrl = responseHeaders.get("Location");
-                	request.setRedirectUrl(newUrl);
+                // Follow redirects here rather than spending a retry on each of them.
+                String location = isRedirect(statusCode) ? responseHeaders.get("Location") : null;
+                if (location != null) {
+                    closeQuietly(httpResponse.content);
+                    String url = request.getUrl();
+                    if (++redirectCount > mMaxRedirects) {
+                        throw new RedirectError(new NetworkResponse(statusCode, null,
+                                responseHeaders, false,
+                                SystemClock.elapsedRealtime() - requestStart));
+                    }
+                    String newUrl = resolveLocation(url, location);
+                    if (!isPermanentRedirect(statusCode)) {
+                        // Only the permanent start of a chain may be skipped later on.
+                        permanentRedirectSource = null;
+                    } else if (permanentRedirectSource != null) {
+                        rememberPermanentRedirect(request.getMethod(), permanentRedirectSource,
+                                newUrl);
+                    }
+                    request.addMarker("redirect");
+                    // Like browsers: a 303 is fetched with GET, and so is a 301 or 302 of a POST.
+                    request.setRedirectUrl(newUrl, redirectsAsGet(statusCode, request.getMethod()));
+                    continue;
                 }
 
                 // Some responses such as 204s do not have content.  We must check.
-                if (httpResponse.getEntity() != null) {
-                  responseContents = entityToBytes(httpResponse.getEntity());
+                if (httpResponse.content != null) {
+                  responseContents = entityToBytes(request, httpResponse);
                 } else {
                   // Add 0 byte response as a way of honestly representing a
                   // no-content request.
@@ -136,7 +222,7 @@ public class BasicNetwork implements Network {
 
                 // if the request is slow, log it.
                 long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-                logSlowRequests(requestLifetime, request, responseContents, statusLine);
+                logSlowRequests(requestLifetime, request, responseContents, statusCode);
 
                 if (statusCode < 200 || statusCode > 299) {
                     throw new IOException();
@@ -153,16 +239,11 @@ public class BasicNetwork implements Network {
                 int statusCode = 0;
                 NetworkResponse networkResponse = null;
                 if (httpResponse != null) {
-                    statusCode = httpResponse.getStatusLine().getStatusCode();
+                    statusCode = httpResponse.statusCode;
                 } else {
                     throw new NoConnectionError(e);
                 }
-                if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || 
-                		statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
-                	VolleyLog.e("Request at %s has been redirected to %s", request.getOriginUrl(), request.getUrl());
-                } else {
-                	VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
-                }
+                VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
                 if (responseContents != null) {
                     networkResponse = new NetworkResponse(statusCode, responseContents,
                             responseHeaders, false, SystemClock.elapsedRealtime() - requestStart);
@@ -170,10 +251,6 @@ public class BasicNetwork implements Network {
                             statusCode == HttpStatus.SC_FORBIDDEN) {
                         attemptRetryOnException("auth",
                                 request, new AuthFailureError(networkResponse));
-                    } else if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || 
-                    			statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
-                        attemptRetryOnException("redirect",
-                                request, new RedirectError(networkResponse));
                     } else {
                         // TODO: Only throw ServerError for 5xx status codes.
                         throw new ServerError(networkResponse);
@@ -185,16 +262,89 @@ public class BasicNetwork implements Network {
         }
     }
 
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == HttpStatus.SC_MOVED_PERMANENTLY
+                || statusCode == HttpStatus.SC_MOVED_TEMPORARILY
+                || statusCode == HttpStatus.SC_SEE_OTHER
+                || statusCode == HttpStatus.SC_TEMPORARY_REDIRECT
+                || statusCode == SC_PERMANENT_REDIRECT;
+    }
+
+    private static boolean isPermanentRedirect(int statusCode) {
+        return statusCode == HttpStatus.SC_MOVED_PERMANENTLY
+                || statusCode == SC_PERMANENT_REDIRECT;
+    }
+
+    /**
+     * Returns true if a redirect with {@code statusCode} of a request sent with
+     * {@code method} is followed with a GET without a body.
+     */
+    private static boolean redirectsAsGet(int statusCode, int method) {
+        if (method == Request.Method.GET || method == Request.Method.HEAD) {
+            return false;
+        }
+        if (statusCode == HttpStatus.SC_SEE_OTHER) {
+            return true;
+        }
+        return (statusCode == HttpStatus.SC_MOVED_PERMANENTLY
+                || statusCode == HttpStatus.SC_MOVED_TEMPORARILY)
+                && (method == Request.Method.POST
+                        || method == Request.Method.DEPRECATED_GET_OR_POST);
+    }
+
+    /**
+     * Returns true if permanent redirects of requests sent with {@code method} are remembered.
+     * Other methods may be redirected differently, or turned into a GET on the way.
+     */
+    private static boolean remembersRedirects(int method) {
+        return method == Request.Method.GET || method == Request.Method.HEAD;
+    }
+
+    /** Resolves a Location header, which may be relative, against the URL that sent it. */
+    private static String resolveLocation(String url, String location) throws RedirectError {
+        try {
+            return new URL(new URL(url), location).toString();
+        } catch (MalformedURLException e) {
+            throw new RedirectError(e);
+        }
+    }
+
+    /** Sends the request straight to where its URL was last permanently moved to. */
+    private void applyPermanentRedirect(Request<?> request) {
+        if (!remembersRedirects(request.getMethod())) {
+            return;
+        }
+        String target;
+        synchronized (mPermanentRedirects) {
+            target = mPermanentRedirects.get(request.getMethod() + ":" + request.getUrl());
+        }
+        if (target != null) {
+            request.addMarker("permanent-redirect-cached");
+            request.setRedirectUrl(target);
+        }
+    }
+
+    private void rememberPermanentRedirect(int method, String url, String target) {
+        String key = method + ":" + url;
+        synchronized (mPermanentRedirects) {
+            if (url.equals(target)) {
+                mPermanentRedirects.remove(key);
+            } else {
+                mPermanentRedirects.put(key, target);
+            }
+        }
+    }
+
     /**
      * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
      */
     private void logSlowRequests(long requestLifetime, Request<?> request,
-            byte[] responseContents, StatusLine statusLine) {
+            byte[] responseContents, int statusCode) {
         if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
             VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [size=%s], " +
                     "[rc=%d], [retryCount=%s]", request, requestLifetime,
                     responseContents != null ? responseContents.length : "null",
-                    statusLine.getStatusCode(), request.getRetryPolicy().getCurrentRetryCount());
+                    statusCode, request.getRetryPolicy().getCurrentRetryCount());
         }
     }
 
@@ -229,8 +379,8 @@ public class BasicNetwork implements Network {
         }
 
         if (entry.lastModified > 0) {
-            Date refTime = new Date(entry.lastModified);
-            headers.put("If-Modified-Since", DateUtils.formatDate(refTime));
+            headers.put("If-Modified-Since",
+                    HttpHeaderParser.formatEpochAsRfc1123(entry.lastModified));
         }
     }
 
@@ -239,13 +389,49 @@ public class BasicNetwork implements Network {
         VolleyLog.v("HTTP ERROR(%s) %d ms to fetch %s", what, (now - start), url);
     }
 
-    /** Reads the contents of HttpEntity into a byte[]. */
-    private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
+    /**
+     * Performs the request on the stack, adapting the Apache {@link HttpResponse} of stacks
+     * that only implement the older {@link HttpStack} contract.
+     */
+    private HttpStackResponse executeRequest(Request<?> request, Map<String, String> headers)
+            throws IOException, AuthFailureError {
+        if (mHttpStack instanceof BaseHttpStack) {
+            return ((BaseHttpStack) mHttpStack).executeRequest(request, headers);
+        }
+        HttpResponse apacheResponse = mHttpStack.performRequest(request, headers);
+        HttpEntity entity = apacheResponse.getEntity();
+        return new HttpStackResponse(apacheResponse.getStatusLine().getStatusCode(),
+                convertHeaders(apacheResponse.getAllHeaders()),
+                entity != null ? (int) entity.getContentLength() : 0,
+                entity != null ? entity.getContent() : null);
+    }
+
+    /**
+     * Reads the body of an {@link HttpStackResponse} into a byte[], holding its size against
+     * the response byte budget while it is read.
+     */
+    private byte[] entityToBytes(Request<?> request, HttpStackResponse response)
+            throws IOException, VolleyError {
+        InputStream in = response.content;
+        int maxBytes = request.getMaxResponseBytes();
+        if (maxBytes > 0 && response.contentLength > maxBytes) {
+            closeQuietly(in);
+            throw new ResponseTooLargeError(maxBytes, response.contentLength);
+        }
+        long reserved;
+        try {
+            reserved = mBudget.acquire(response.contentLength >= 0
+                    ? response.contentLength : UNKNOWN_LENGTH_RESERVATION);
+        } catch (InterruptedException e) {
+            closeQuietly(in);
+            // Keep the interrupt so the dispatcher still sees that it was asked to quit.
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response byte budget");
+        }
         PoolingByteArrayOutputStream bytes =
-                new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
+                new PoolingByteArrayOutputStream(mPool, response.contentLength);
         byte[] buffer = null;
         try {
-            InputStream in = entity.getContent();
             if (in == null) {
                 throw new ServerError();
             }
@@ -253,30 +439,48 @@ public class BasicNetwork implements Network {
             int count;
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
+                int size = bytes.size();
+                if (maxBytes > 0 && size > maxBytes) {
+                    throw new ResponseTooLargeError(maxBytes, size);
+                }
+                if (size > reserved) {
+                    // Charge in steps so streaming does not lock the budget for every read.
+                    long extra = Math.max(size - reserved, UNKNOWN_LENGTH_RESERVATION);
+                    mBudget.charge(extra);
+                    reserved += extra;
+                }
             }
             return bytes.toByteArray();
         } finally {
-            try {
-                // Close the InputStream and release the resources by "consuming the content".
-                entity.consumeContent();
-            } catch (IOException e) {
-                // This can happen if there was an exception above that left the entity in
-                // an invalid state.
-                VolleyLog.v("Error occured when calling consumingContent");
-            }
+            // Close the InputStream and release the resources held by the connection.
+            closeQuietly(in);
             mPool.returnBuf(buffer);
             bytes.close();
+            mBudget.release(reserved);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // This can happen if there was an exception above that left the stream in
+            // an invalid state.
+            VolleyLog.v("Error occured when closing the response stream");
         }
     }
 
     /**
-     * Converts Headers[] to Map<String, String>.
+     * Converts Header[] to {@link Headers}.
      */
-    protected static Map<String, String> convertHeaders(Header[] headers) {
-        Map<String, String> result = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    protected static Headers convertHeaders(Header[] headers) {
+        Headers.Builder result = new Headers.Builder(headers.length);
         for (int i = 0; i < headers.length; i++) {
-            result.put(headers[i].getName(), headers[i].getValue());
+            result.add(headers[i].getName(), headers[i].getValue());
         }
-        return result;
+        return result.build();
     }
 }
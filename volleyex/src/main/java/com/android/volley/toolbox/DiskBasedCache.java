@@ -19,6 +19,9 @@ package com.android.volley.toolbox;
 import android.os.SystemClock;
 
 import com.android.volley.cache.Cache;
+import com.android.volley.cache.CacheStats;
+import com.android.volley.cache.StatsCounter;
+import com.android.volley.Headers;
 import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
@@ -31,8 +34,8 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -50,6 +53,9 @@ public class DiskBasedCache implements Cache {
     /** Total amount of space currently used by the cache in bytes. */
     private long mTotalSize = 0;
 
+    /** Counts for {@link #getStats()}. */
+    private final StatsCounter mStats = new StatsCounter();
+
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
@@ -65,6 +71,15 @@ public class DiskBasedCache implements Cache {
     /** Magic number for current version of cache file format. */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /** Name of the file the index is saved to by {@link #close()}. */
+    private static final String INDEX_SNAPSHOT_FILE = "index.snapshot";
+
+    /** Magic number of the index snapshot. */
+    private static final int INDEX_SNAPSHOT_MAGIC = 0x20151211;
+
+    /** Bodies of at least this many bytes are memory-mapped instead of copied onto the heap. */
+    private static final int MIN_MAPPED_BODY_BYTES = 128 * 1024;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
@@ -114,10 +129,88 @@ public class DiskBasedCache implements Cache {
     public void flush() {}
 
     /**
-     * Close the cache.
+     * Close the cache, saving the headers of all entries so that the next
+     * {@link #initialize()} reads them back from one file instead of opening every entry.
      */
-    public void close() {
-       mEntries.clear();
+    public synchronized void close() {
+        if (!mEntries.isEmpty()) {
+            writeIndexSnapshot();
+        }
+        mEntries.clear();
+        mTotalSize = 0;
+    }
+
+    private void writeIndexSnapshot() {
+        File snapshot = new File(mRootDirectory, INDEX_SNAPSHOT_FILE);
+        File tmp = new File(mRootDirectory, INDEX_SNAPSHOT_FILE + ".tmp");
+        BufferedOutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmp));
+            writeInt(os, INDEX_SNAPSHOT_MAGIC);
+            writeInt(os, mEntries.size());
+            for (CacheHeader header : mEntries.values()) {
+                writeLong(os, header.size);
+                if (!header.writeHeader(os)) {
+                    throw new IOException("Failed to write header of " + header.key);
+                }
+            }
+            writeInt(os, INDEX_SNAPSHOT_MAGIC);
+            os.close();
+            os = null;
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Failed to rename " + tmp);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Failed to save the cache index: %s", e.toString());
+            tmp.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Loads the entries saved by {@link #close()}, and deletes the snapshot so that it can't
+     * be used once the cache has changed. Returns false if there was no usable snapshot.
+     */
+    private boolean readIndexSnapshot() {
+        File snapshot = new File(mRootDirectory, INDEX_SNAPSHOT_FILE);
+        if (!snapshot.exists()) {
+            return false;
+        }
+        BufferedInputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024);
+            if (readInt(is) != INDEX_SNAPSHOT_MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            int count = readInt(is);
+            for (int i = 0; i < count; i++) {
+                long size = readLong(is);
+                CacheHeader header = CacheHeader.readHeader(is);
+                header.size = size;
+                putEntry(header.key, header);
+            }
+            if (readInt(is) != INDEX_SNAPSHOT_MAGIC) {
+                throw new IOException("Bad trailer");
+            }
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Ignoring the saved cache index: %s", e.toString());
+            mEntries.clear();
+            mTotalSize = 0;
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+            snapshot.delete();
+        }
     }
     // added end
 
@@ -125,7 +218,19 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            mStats.recordHit(System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    /** Looks up an entry without counting it as a get in {@link #getStats()}. */
+    private synchronized Entry getEntry(String key) {
         CacheHeader entry = mEntries.get(key);
         // if the entry does not exist, return.
         if (entry == null) {
@@ -135,9 +240,20 @@ public class DiskBasedCache implements Cache {
         File file = getFileForKey(key);
         CountingInputStream cis = null;
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            FileInputStream fis = new FileInputStream(file);
+            cis = new CountingInputStream(new BufferedInputStream(fis));
             CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
+            long length = file.length() - cis.bytesRead;
+            if (length >= MIN_MAPPED_BODY_BYTES) {
+                // Map the body rather than copying it onto the heap; the mapping does not
+                // depend on how far the buffered stream has read ahead.
+                ByteBuffer body = fis.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, cis.bytesRead, length);
+                mStats.recordRead(length);
+                return entry.toCacheEntry(body);
+            }
+            byte[] data = streamToBytes(cis, (int) length);
+            mStats.recordRead(length);
             return entry.toCacheEntry(data);
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
@@ -158,6 +274,11 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
     /**
      * Initializes the DiskBasedCache by scanning for all files currently in the
      * specified root directory. Creates the root directory if necessary.
@@ -171,11 +292,20 @@ public class DiskBasedCache implements Cache {
             return;
         }
 
+        if (readIndexSnapshot()) {
+            return;
+        }
+
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
         for (File file : files) {
+            if (file.getName().startsWith(INDEX_SNAPSHOT_FILE)) {
+                // A snapshot that could not be used, or the leftover of an interrupted one.
+                file.delete();
+                continue;
+            }
             BufferedInputStream fis = null;
             try {
                 fis = new BufferedInputStream(new FileInputStream(file));
@@ -214,12 +344,37 @@ public class DiskBasedCache implements Cache {
 
     }
 
+    /**
+     * Returns the metadata of the entry with the specified key if it exists, null otherwise.
+     * The metadata is kept in memory, so nothing is read until the data is asked for.
+     */
+    @Override
+    public synchronized Entry getMetadata(String key) {
+        long start = System.nanoTime();
+        CacheHeader header = mEntries.get(key);
+        if (header == null) {
+            mStats.recordMiss(System.nanoTime() - start);
+            return null;
+        }
+        Entry entry = header.toCacheEntry((byte[]) null);
+        // The lookup is counted here; loading the body is not another one.
+        entry.bodyLoader = new ReloadingBodyLoader(this, key) {
+            @Override
+            protected Entry lookup(String key) {
+                return getEntry(key);
+            }
+        };
+        mStats.recordHit(System.nanoTime() - start);
+        return entry;
+    }
+
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
     public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
+        long start = System.nanoTime();
+        pruneIfNeeded(entry.getDataLength());
         File file = getFileForKey(key);
         try {
             BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
@@ -230,9 +385,10 @@ public class DiskBasedCache implements Cache {
                 VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
                 throw new IOException();
             }
-            fos.write(entry.data);
+            entry.writeDataTo(fos);
             fos.close();
             putEntry(key, e);
+            mStats.recordPut(System.nanoTime() - start, entry.getDataLength());
             return;
         } catch (IOException e) {
         }
@@ -290,31 +446,48 @@ public class DiskBasedCache implements Cache {
         int prunedFiles = 0;
         long startTime = SystemClock.elapsedRealtime();
 
+        // Entries without validators that expired longer ago than stale responses are kept
+        // for are of no further use, so they go first.
+        long cutoff = System.currentTimeMillis() - STALE_RETENTION_MS;
         Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
+        while (iterator.hasNext()
+                && (mTotalSize + neededSpace) >= mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+            CacheHeader e = iterator.next().getValue();
+            if (e.ttl < cutoff && e.etag == null && e.lastModified == 0) {
+                deleteEntryFile(e);
+                iterator.remove();
+                prunedFiles++;
             }
+        }
+
+        iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()
+                && (mTotalSize + neededSpace) >= mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+            deleteEntryFile(iterator.next().getValue());
             iterator.remove();
             prunedFiles++;
-
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
-            }
         }
 
+        mStats.recordEvictions(prunedFiles);
         if (VolleyLog.DEBUG) {
             VolleyLog.v("pruned %d files, %d bytes, %d ms",
                     prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
         }
     }
 
+    /**
+     * Deletes the file of a pruned entry and takes its size off the total.
+     */
+    private void deleteEntryFile(CacheHeader e) {
+        boolean deleted = getFileForKey(e.key).delete();
+        if (deleted) {
+            mTotalSize -= e.size;
+        } else {
+           VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                   e.key, getFilenameForKey(e.key));
+        }
+    }
+
     /**
      * Puts the entry with the specified key into the cache.
      * @param key The key to identify the entry by.
@@ -396,7 +569,7 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.getDataLength();
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.lastModified = entry.lastModified;
@@ -446,6 +619,15 @@ public class DiskBasedCache implements Cache {
             return e;
         }
 
+        /**
+         * Creates a cache entry whose data is only held by {@code dataBuffer}.
+         */
+        public Entry toCacheEntry(ByteBuffer dataBuffer) {
+            Entry e = toCacheEntry((byte[]) null);
+            e.dataBuffer = dataBuffer;
+            return e;
+        }
+
 
         /**
          * Writes the contents of this CacheHeader to the specified OutputStream.
@@ -568,7 +750,14 @@ public class DiskBasedCache implements Cache {
     }
 
     static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
-        if (map != null) {
+        if (map instanceof Headers) {
+            Headers headers = (Headers) map;
+            writeInt(os, headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                writeString(os, headers.name(i));
+                writeString(os, headers.value(i));
+            }
+        } else if (map != null) {
             writeInt(os, map.size());
             for (Map.Entry<String, String> entry : map.entrySet()) {
                 writeString(os, entry.getKey());
@@ -579,17 +768,18 @@ public class DiskBasedCache implements Cache {
         }
     }
 
-    static Map<String, String> readStringStringMap(InputStream is) throws IOException {
+    static Headers readStringStringMap(InputStream is) throws IOException {
         int size = readInt(is);
-        Map<String, String> result = (size == 0)
-                ? Collections.<String, String>emptyMap()
-                : new HashMap<String, String>(size);
+        if (size == 0) {
+            return Headers.EMPTY;
+        }
+        Headers.Builder result = new Headers.Builder(size);
         for (int i = 0; i < size; i++) {
-            String key = readString(is).intern();
-            String value = readString(is).intern();
-            result.put(key, value);
+            String key = readString(is);
+            String value = readString(is);
+            result.add(key, value);
         }
-        return result;
+        return result.build();
     }
 
 
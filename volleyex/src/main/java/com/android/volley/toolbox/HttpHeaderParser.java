@@ -19,17 +19,51 @@ package com.android.volley.toolbox;
 import com.android.volley.cache.Cache;
 import com.android.volley.NetworkResponse;
 
-import org.apache.http.impl.cookie.DateParseException;
-import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.protocol.HTTP;
 
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * Utility methods for parsing HTTP headers.
  */
 public class HttpHeaderParser {
 
+    /** Date format used in HTTP headers, as specified by RFC 1123. */
+    private static final String PATTERN_RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /** Obsolete date formats that servers still send and clients must accept. */
+    private static final String PATTERN_RFC1036 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
+    private static final String PATTERN_ASCTIME = "EEE MMM d HH:mm:ss yyyy";
+
+    /**
+     * Per-thread date formats, tried in order when parsing; the first one is used for
+     * formatting. {@link SimpleDateFormat} is not thread safe and is costly to create.
+     */
+    private static final ThreadLocal<SimpleDateFormat[]> DATE_FORMATS =
+            new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            TimeZone gmt = TimeZone.getTimeZone("GMT");
+            Calendar twoDigitYearStart = Calendar.getInstance(gmt, Locale.US);
+            twoDigitYearStart.clear();
+            twoDigitYearStart.set(2000, Calendar.JANUARY, 1);
+            String[] patterns = { PATTERN_RFC1123, PATTERN_RFC1036, PATTERN_ASCTIME };
+            SimpleDateFormat[] formats = new SimpleDateFormat[patterns.length];
+            for (int i = 0; i < patterns.length; i++) {
+                formats[i] = new SimpleDateFormat(patterns[i], Locale.US);
+                formats[i].setTimeZone(gmt);
+                formats[i].set2DigitYearStart(twoDigitYearStart.getTime());
+            }
+            return formats;
+        }
+    };
+
     /*
     /**
      * Extracts a {@link Cache.Entry} from a {@link NetworkResponse}.
@@ -112,6 +146,7 @@ public class HttpHeaderParser {
 
         Cache.Entry entry = new Cache.Entry();
         entry.data = response.data;
+        entry.dataBuffer = response.dataBuffer;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
         entry.ttl = finalExpire;
@@ -222,6 +257,7 @@ public class HttpHeaderParser {
 
         Cache.Entry entry = new Cache.Entry();
         entry.data = response.data;
+        entry.dataBuffer = response.dataBuffer;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
         entry.ttl = finalExpire;
@@ -236,13 +272,27 @@ public class HttpHeaderParser {
      * Parse date in RFC1123 format, and return its value as epoch
      */
     public static long parseDateAsEpoch(String dateStr) {
-        try {
-            // Parse date in RFC1123 format if this header contains one
-            return DateUtils.parseDate(dateStr).getTime();
-        } catch (DateParseException e) {
-            // Date in invalid format, fallback to 0
-            return 0;
+        String value = dateStr.trim();
+        // Some servers wrap the date in single quotes.
+        if (value.length() > 1 && value.startsWith("'") && value.endsWith("'")) {
+            value = value.substring(1, value.length() - 1);
         }
+        for (SimpleDateFormat format : DATE_FORMATS.get()) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+        // Date in invalid format, fallback to 0
+        return 0;
+    }
+
+    /**
+     * Formats an epoch as an RFC1123 date, suitable for headers such as If-Modified-Since.
+     */
+    public static String formatEpochAsRfc1123(long epoch) {
+        return DATE_FORMATS.get()[0].format(new Date(epoch));
     }
 
     /**
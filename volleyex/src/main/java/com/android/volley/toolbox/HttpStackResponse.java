@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Headers;
+
+import java.io.InputStream;
+
+/**
+ * A raw HTTP response as returned by {@link BaseHttpStack#executeRequest}: the status code,
+ * the headers and a stream over the body, with no Apache HTTP types involved.
+ */
+public class HttpStackResponse {
+
+    /**
+     * Creates a new response.
+     * @param statusCode the HTTP status code
+     * @param headers the response headers, or null for none
+     * @param contentLength the length of the body in bytes, or -1 if unknown
+     * @param content the body, or null if the response has none
+     */
+    public HttpStackResponse(int statusCode, Headers headers, int contentLength,
+            InputStream content) {
+        this.statusCode = statusCode;
+        this.headers = headers != null ? headers : Headers.EMPTY;
+        this.contentLength = contentLength;
+        this.content = content;
+    }
+
+    /** The HTTP status code. */
+    public final int statusCode;
+
+    /** Response headers. */
+    public final Headers headers;
+
+    /** Length of the body in bytes, or -1 if it is unknown. */
+    public final int contentLength;
+
+    /** Stream over the body, or null if the response has none. Must be closed by the reader. */
+    public final InputStream content;
+}
@@ -17,19 +17,11 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.Headers;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.ProtocolVersion;
-import org.apache.http.StatusLine;
-import org.apache.http.entity.BasicHttpEntity;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicHttpResponse;
-import org.apache.http.message.BasicStatusLine;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -47,7 +39,7 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * An {@link HttpStack} based on {@link HttpURLConnection}.
  */
-public class HurlStack implements HttpStack {
+public class HurlStack extends BaseHttpStack {
 
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
 
@@ -86,8 +78,8 @@ public class HurlStack implements HttpStack {
     }
 
     @Override
-    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
-            throws IOException, AuthFailureError {
+    public HttpStackResponse executeRequest(Request<?> request,
+            Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
         String url = request.getUrl();
         HashMap<String, String> map = new HashMap<String, String>();
         map.putAll(request.getHeaders());
@@ -105,27 +97,33 @@ public class HurlStack implements HttpStack {
             connection.addRequestProperty(headerName, map.get(headerName));
         }
         setConnectionParametersForRequest(connection, request);
-        // Initialize HttpResponse with data from the HttpURLConnection.
-        ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
         int responseCode = connection.getResponseCode();
         if (responseCode == -1) {
             // -1 is returned by getResponseCode() if the response code could not be retrieved.
             // Signal to the caller that something was wrong with the connection.
             throw new IOException("Could not retrieve response code from HttpUrlConnection.");
         }
-        StatusLine responseStatus = new BasicStatusLine(protocolVersion,
-                connection.getResponseCode(), connection.getResponseMessage());
-        BasicHttpResponse response = new BasicHttpResponse(responseStatus);
-        if (hasResponseBody(request.getMethod(), responseStatus.getStatusCode())) {
-            response.setEntity(entityFromConnection(connection));
+        Headers headers = convertHeaders(connection.getHeaderFields());
+        if (!hasResponseBody(request.getMethod(), responseCode)) {
+            return new HttpStackResponse(responseCode, headers, 0, null);
         }
-        for (Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
-            if (header.getKey() != null) {
-                Header h = new BasicHeader(header.getKey(), header.getValue().get(0));
-                response.addHeader(h);
+        return new HttpStackResponse(responseCode, headers, connection.getContentLength(),
+                inputStreamFromConnection(connection));
+    }
+
+    /**
+     * Converts the header fields of an {@link HttpURLConnection}, keeping the first value of
+     * each header and skipping the status line, which is reported under a null name.
+     */
+    private static Headers convertHeaders(Map<String, List<String>> headerFields) {
+        Headers.Builder headers = new Headers.Builder(headerFields.size());
+        for (Entry<String, List<String>> header : headerFields.entrySet()) {
+            List<String> values = header.getValue();
+            if (header.getKey() != null && values != null && !values.isEmpty()) {
+                headers.add(header.getKey(), values.get(0));
             }
         }
-        return response;
+        return headers.build();
     }
 
     /**
@@ -143,23 +141,19 @@ public class HurlStack implements HttpStack {
     }
 
     /**
-     * Initializes an {@link HttpEntity} from the given {@link HttpURLConnection}.
+     * Returns the body stream of the given {@link HttpURLConnection}, falling back to the error
+     * stream for error responses.
      * @param connection
-     * @return an HttpEntity populated with data from <code>connection</code>.
+     * @return the response body of <code>connection</code>.
      */
-    private static HttpEntity entityFromConnection(HttpURLConnection connection) {
-        BasicHttpEntity entity = new BasicHttpEntity();
+    private static InputStream inputStreamFromConnection(HttpURLConnection connection) {
         InputStream inputStream;
         try {
             inputStream = connection.getInputStream();
         } catch (IOException ioe) {
             inputStream = connection.getErrorStream();
         }
-        entity.setContent(inputStream);
-        entity.setContentLength(connection.getContentLength());
-        entity.setContentEncoding(connection.getContentEncoding());
-        entity.setContentType(connection.getContentType());
-        return entity;
+        return inputStream;
     }
 
     /**
@@ -183,6 +177,8 @@ public class HurlStack implements HttpStack {
         connection.setReadTimeout(timeoutMs);
         connection.setUseCaches(false);
         connection.setDoInput(true);
+        // BasicNetwork follows redirects itself so that it can remember permanent ones.
+        connection.setInstanceFollowRedirects(false);
 
         // use caller-provided custom SslSocketFactory, if any, for HTTPS
         if ("https".equals(url.getProtocol()) && mSslSocketFactory != null) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Bounds the number of response body bytes that all network dispatchers may hold in memory at
+ * the same time.
+ * <p>
+ * A transfer reserves its expected size with {@link #acquire(long)} before reading the body,
+ * waiting while other transfers hold the budget. Bodies of unknown length reserve a small
+ * amount and {@link #charge(long)} the rest as they grow; charges never wait, since a transfer
+ * that is already streaming must be able to finish and release what it holds, but they do keep
+ * new transfers waiting until the budget is back under its limit.
+ * <p>
+ * A single reservation larger than the whole budget is clamped to it, so an oversized body
+ * still goes through once it has the budget to itself.
+ */
+public class ResponseByteBudget {
+    private final long mMaxBytes;
+
+    /** Bytes currently reserved or charged by in-flight transfers. */
+    private long mBytesInUse = 0;
+
+    /**
+     * @param maxBytes the number of body bytes that may be in flight at once
+     */
+    public ResponseByteBudget(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /** Returns a budget of one eighth of the maximum heap size. */
+    public static ResponseByteBudget forHeap() {
+        return new ResponseByteBudget(Math.max(Runtime.getRuntime().maxMemory() / 8, 1));
+    }
+
+    /**
+     * Reserves {@code bytes}, waiting until they fit in the budget or nothing else is in flight.
+     *
+     * @return the number of bytes actually reserved, to be passed to {@link #release(long)}
+     */
+    public synchronized long acquire(long bytes) throws InterruptedException {
+        bytes = Math.min(Math.max(bytes, 0), mMaxBytes);
+        while (mBytesInUse > 0 && mBytesInUse + bytes > mMaxBytes) {
+            wait();
+        }
+        mBytesInUse += bytes;
+        return bytes;
+    }
+
+    /** Charges {@code bytes} read beyond a reservation without waiting. */
+    public synchronized void charge(long bytes) {
+        mBytesInUse += bytes;
+    }
+
+    /** Returns {@code bytes} previously acquired or charged to the budget. */
+    public synchronized void release(long bytes) {
+        mBytesInUse -= bytes;
+        notifyAll();
+    }
+
+    /** Returns the number of bytes currently held by in-flight transfers. */
+    public synchronized long getBytesInUse() {
+        return mBytesInUse;
+    }
+
+    /** Returns the size of the budget in bytes. */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+}
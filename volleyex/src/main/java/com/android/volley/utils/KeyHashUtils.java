@@ -0,0 +1,172 @@
+package com.android.volley.utils;
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Turns cache keys into short file names with the 128-bit MurmurHash3 (x64 variant) of
+ * their UTF-8 bytes, written as 26 lower-case base32 characters.
+ *
+ * <p>The hash is not cryptographic; it only has to spread keys evenly and make accidental
+ * collisions unlikely, at a fraction of the cost of a message digest.</p>
+ */
+public class KeyHashUtils {
+
+    /** Length of the names returned by {@link #hash(String)}. */
+    public static final int HASH_LENGTH = 26;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // base32hex, so names only hold characters that are legal in DiskLruCache keys.
+    private static final char[] BASE32_DIGITS = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /** Number of recently hashed keys remembered, a power of two. */
+    private static final int MEMO_SIZE = 256;
+
+    /**
+     * Recently hashed keys, by identity. Requests hand the cache the same key instance on
+     * every lookup, so this saves hashing it again for the get, the put and the invalidate.
+     */
+    private static final AtomicReferenceArray<Memo> sMemo = new AtomicReferenceArray<Memo>(MEMO_SIZE);
+
+    private static final class Memo {
+        final String key;
+        final String hash;
+
+        Memo(String key, String hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    private KeyHashUtils() {
+    }
+
+    /**
+     * Returns the file name for {@code key}, reusing the result of an earlier call for the
+     * same key instance.
+     */
+    public static String hash(String key) {
+        int slot = System.identityHashCode(key) & (MEMO_SIZE - 1);
+        Memo memo = sMemo.get(slot);
+        if (memo != null && memo.key == key) {
+            return memo.hash;
+        }
+        String hash = computeHash(key);
+        sMemo.set(slot, new Memo(key, hash));
+        return hash;
+    }
+
+    /** Computes the file name for {@code key}. */
+    public static String computeHash(String key) {
+        byte[] bytes = key.getBytes(UTF_8);
+        long[] hash = murmur3x64(bytes, 0);
+        return toBase32(hash[0], hash[1]);
+    }
+
+    /** Returns the two halves of the 128-bit MurmurHash3 (x64 variant) of {@code data}. */
+    static long[] murmur3x64(byte[] data, int seed) {
+        long h1 = seed & 0xffffffffL;
+        long h2 = h1;
+        int length = data.length;
+        int blocks = length / 16;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLE(data, i * 16);
+            long k2 = getLongLE(data, i * 16 + 8);
+
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        switch (length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xffL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xffL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xffL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xffL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xffL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xffL) << 8;
+            case 9:
+                k2 ^= (data[tail + 8] & 0xffL);
+                k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+            case 8: k1 ^= (data[tail + 7] & 0xffL) << 56;
+            case 7: k1 ^= (data[tail + 6] & 0xffL) << 48;
+            case 6: k1 ^= (data[tail + 5] & 0xffL) << 40;
+            case 5: k1 ^= (data[tail + 4] & 0xffL) << 32;
+            case 4: k1 ^= (data[tail + 3] & 0xffL) << 24;
+            case 3: k1 ^= (data[tail + 2] & 0xffL) << 16;
+            case 2: k1 ^= (data[tail + 1] & 0xffL) << 8;
+            case 1:
+                k1 ^= (data[tail] & 0xffL);
+                k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[] {h1, h2};
+    }
+
+    private static long getLongLE(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /** Writes the 128 bits of {@code high} and {@code low} as 26 base32 digits. */
+    private static String toBase32(long high, long low) {
+        char[] chars = new char[HASH_LENGTH];
+        // 26 digits hold 130 bits; the first digit takes the top 3 bits of high.
+        for (int i = HASH_LENGTH - 1; i >= 0; i--) {
+            chars[i] = BASE32_DIGITS[(int) (low & 31)];
+            low = (low >>> 5) | (high << 59);
+            high >>>= 5;
+        }
+        return new String(chars);
+    }
+}
@@ -63,7 +63,7 @@ public class MD5Utils {
     private static String byteArrayToHex(byte[] bytes){
         char[] hexs = new char[bytes.length * 2];
         for(int i = 0; i < bytes.length; i ++) {
-            char c0 = hexDigits[bytes[i] & 0xf0 >> 4];
+            char c0 = hexDigits[(bytes[i] & 0xf0) >> 4];
             char c1 = hexDigits[bytes[i] & 0x0f];
             hexs[i * 2] = c0;
             hexs[i * 2 + 1] = c1;